@@ -0,0 +1,151 @@
+package org.jenkinsci.plugins;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.AccessTokenResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.infra.Blackhole;
+
+import static org.jenkinsci.plugins.ServletStubs.defaultValue;
+import static org.jenkinsci.plugins.ServletStubs.stub;
+
+/**
+ * Measures the overhead of {@link RefreshFilter#doFilter} for the different
+ * kinds of requests it sees. Keycloak is replaced by a stubbed HTTP client of
+ * the {@link KeycloakDeployment}, so the expired token mode measures the
+ * refresh handling without network latency.
+ */
+@JmhBenchmark
+public class RefreshFilterBenchmark {
+
+    private static final String KEYCLOAK_JSON = "{\"realm\": \"master\",\"auth-server-url\": \"http://keycloak.example.com/auth/\",\"ssl-required\": \"none\",\"resource\": \"ci-example-com\",\"credentials\": {\"secret\": \"secret-secret-secret\"},\"confidential-port\": 0}";
+
+    private static final String ISSUER = "http://keycloak.example.com/auth/realms/master";
+
+    /**
+     * The request modes measured by this benchmark.
+     */
+    public enum RequestMode {
+        /** request without any HTTP session */
+        NO_SESSION,
+        /** request of a session which never logged in */
+        ANONYMOUS,
+        /** logged in session with a valid access token */
+        VALID_TOKEN,
+        /** logged in session whose access token is expired on every request */
+        EXPIRED_TOKEN,
+        /** logged in session with respectAccessTokenTimeout set to false */
+        IGNORE_TOKEN_TIMEOUT
+    }
+
+    public static class FilterState extends JmhBenchmarkState {
+        @Param
+        RequestMode mode;
+
+        RefreshFilter filter;
+        HttpServletRequest request;
+        HttpServletResponse response;
+        Authentication authentication;
+        FilterChain chain = (req, res) -> { };
+
+        @Override
+        public void setup() throws Exception {
+            long expiresIn = mode == RequestMode.EXPIRED_TOKEN ? -1 : 300;
+
+            KeycloakSecurityRealm ksr = new KeycloakSecurityRealm();
+            ksr.setKeycloakJson(KEYCLOAK_JSON);
+            ksr.setKeycloakValidate(true);
+            ksr.setKeycloakRespectAccessTokenTimeout(mode != RequestMode.IGNORE_TOKEN_TIMEOUT);
+            getJenkins().setSecurityRealm(ksr);
+            KeycloakDeployment deployment = ksr.getKeycloakDeployment();
+            deployment.setClient(stubClient(tokenResponseJson(expiresIn)));
+
+            filter = new RefreshFilter();
+            response = stub(HttpServletResponse.class);
+            HttpSession session = null;
+            if (mode != RequestMode.NO_SESSION) {
+                session = session(mode != RequestMode.ANONYMOUS);
+            }
+            request = request(session);
+            if (mode != RequestMode.NO_SESSION && mode != RequestMode.ANONYMOUS) {
+                AccessToken token = new AccessToken();
+                token.setPreferredUsername("alice");
+                AccessTokenResponse atr = new AccessTokenResponse();
+                atr.setExpiresIn(expiresIn);
+                atr.setRefreshExpiresIn(1800);
+                atr.setRefreshToken("refresh-token");
+                authentication = new KeycloakAuthentication(token, token, "refresh-token", atr);
+            }
+        }
+    }
+
+    @Benchmark
+    public void doFilter(FilterState state, Blackhole blackhole) throws Exception {
+        SecurityContextHolder.getContext().setAuthentication(state.authentication);
+        state.filter.doFilter(state.request, state.response, state.chain);
+        blackhole.consume(state.authentication);
+    }
+
+    private static String tokenResponseJson(long expiresIn) {
+        return "{\"access_token\":\"access-token\",\"expires_in\":" + expiresIn
+                + ",\"refresh_expires_in\":1800,\"refresh_token\":\"refresh-token\",\"token_type\":\"Bearer\"}";
+    }
+
+    private static String discoveryJson() {
+        String oidc = ISSUER + "/protocol/openid-connect";
+        return "{\"issuer\":\"" + ISSUER + "\",\"authorization_endpoint\":\"" + oidc + "/auth\",\"token_endpoint\":\""
+                + oidc + "/token\",\"end_session_endpoint\":\"" + oidc + "/logout\",\"jwks_uri\":\"" + oidc
+                + "/certs\",\"introspection_endpoint\":\"" + oidc + "/token/introspect\"}";
+    }
+
+    /**
+     * A client answering discovery requests with the realm configuration and
+     * every other request with the given token response.
+     */
+    private static HttpClient stubClient(String tokenResponse) {
+        StringEntity discovery = new StringEntity(discoveryJson(), ContentType.APPLICATION_JSON);
+        StringEntity token = new StringEntity(tokenResponse, StandardCharsets.UTF_8);
+        return stub(HttpClient.class, (method, args) -> {
+            if (!"execute".equals(method.getName())) {
+                return defaultValue(method.getReturnType());
+            }
+            HttpUriRequest request = (HttpUriRequest) args[0];
+            HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+            response.setEntity("GET".equals(request.getMethod()) ? discovery : token);
+            return response;
+        });
+    }
+
+    private static HttpSession session(boolean authRequested) {
+        Map<String, Object> attributes = new ConcurrentHashMap<>();
+        if (authRequested) {
+            attributes.put(KeycloakSecurityRealm.AUTH_REQUESTED, Boolean.TRUE);
+        }
+        return ServletStubs.session(attributes);
+    }
+
+    private static HttpServletRequest request(HttpSession session) {
+        return ServletStubs.request("/job/test/api/json", session);
+    }
+}
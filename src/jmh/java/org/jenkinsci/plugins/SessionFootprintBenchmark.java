@@ -0,0 +1,106 @@
+package org.jenkinsci.plugins;
+
+import java.util.Arrays;
+
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.representations.IDToken;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jol.info.GraphLayout;
+
+/**
+ * Measures the heap of authenticated sessions of users with many roles. Each
+ * operation creates a {@link KeycloakAuthentication} the way a login does,
+ * from freshly parsed role names and a token response with encoded tokens of
+ * realistic size, and keeps it like an HTTP session would. The retained bytes
+ * per session are printed at the end of each trial. The benchmark without
+ * interning runs in forks with the interning system property switched off.
+ */
+@JmhBenchmark
+public class SessionFootprintBenchmark {
+
+    private static final int SESSIONS = 2000;
+
+    private static final int ROLES = 150;
+
+    // encoded JWTs grow with the roles they carry
+    private static final int TOKEN_BYTES_PER_ROLE = 16;
+
+    private static final String NO_INTERN = "-Dorg.jenkinsci.plugins.GrantedAuthorities.intern=false";
+
+    @State(Scope.Benchmark)
+    public static class Sessions {
+        @Param({ "100" })
+        int rolesPerUser;
+
+        // the access token is only needed for the local validation, the difference
+        // shows what sessions without it would save
+        @Param({ "true", "false" })
+        boolean withAccessToken;
+
+        final KeycloakAuthentication[] sessions = new KeycloakAuthentication[SESSIONS];
+
+        int next;
+
+        @TearDown(Level.Trial)
+        public void printFootprint() {
+            int filled = 0;
+            for (KeycloakAuthentication session : sessions) {
+                if (session != null) {
+                    filled++;
+                }
+            }
+            long bytes = GraphLayout.parseInstance((Object) sessions).totalSize();
+            System.out.println("Retained heap per session with " + rolesPerUser + " roles (intern="
+                    + GrantedAuthorities.INTERN + ", access token=" + withAccessToken + "): "
+                    + (bytes / Math.max(1, filled)) + " bytes");
+        }
+    }
+
+    @Benchmark
+    public KeycloakAuthentication login(Sessions state) {
+        return newSession(state);
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = NO_INTERN)
+    public KeycloakAuthentication loginWithoutInterning(Sessions state) {
+        return newSession(state);
+    }
+
+    private static KeycloakAuthentication newSession(Sessions state) {
+        AccessToken token = new AccessToken();
+        token.setPreferredUsername("user-" + state.next);
+        AccessToken.Access realmAccess = new AccessToken.Access();
+        for (int i = 0; i < state.rolesPerUser; i++) {
+            // distinct string instances, as parsed from each token
+            realmAccess.addRole(new StringBuilder("role-").append((state.next + i) % ROLES).toString());
+        }
+        token.setRealmAccess(realmAccess);
+        IDToken idToken = new IDToken();
+        idToken.setPreferredUsername(token.getPreferredUsername());
+        AccessTokenResponse response = new AccessTokenResponse();
+        response.setToken(state.withAccessToken ? encoded(state.rolesPerUser) : null);
+        response.setRefreshToken(encoded(8));
+        response.setIdToken(encoded(state.rolesPerUser));
+        response.setExpiresIn(300);
+        response.setRefreshExpiresIn(1800);
+        KeycloakAuthentication session = new KeycloakAuthentication(idToken, token, response.getRefreshToken(), response);
+        state.sessions[state.next] = session;
+        state.next = (state.next + 1) % SESSIONS;
+        return session;
+    }
+
+    private static String encoded(int roles) {
+        char[] chars = new char[roles * TOKEN_BYTES_PER_ROLE];
+        Arrays.fill(chars, 'x');
+        return new String(chars);
+    }
+}
@@ -0,0 +1,74 @@
+package org.jenkinsci.plugins;
+
+import org.keycloak.TokenVerifier;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.rotation.AdapterTokenVerifier;
+import org.keycloak.common.VerificationException;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.JsonWebToken;
+
+/**
+ * Verifies access tokens with the keys of the realm. Unlike
+ * {@link AdapterTokenVerifier#verifyToken(String, KeycloakDeployment)} the
+ * token must always be issued for the client of the deployment, whether or not
+ * <code>verify-token-audience</code> is set: its audience or its authorized
+ * party has to be the resource of the deployment. Tokens the realm issued to
+ * other clients are rejected.
+ *
+ * @author dev.lauer@elnarion.de
+ *
+ */
+final class AccessTokenVerifier {
+
+	private AccessTokenVerifier() {
+	}
+
+	/**
+	 * Verifies signature, issuer, type, expiry and client of an access token.
+	 *
+	 * @param tokenString
+	 *            the encoded token
+	 * @param deployment
+	 *            the {@link KeycloakDeployment} providing keys and client
+	 * @return {@link AccessToken} the verified token
+	 * @throws VerificationException
+	 *             if the token is invalid
+	 */
+	static AccessToken verify(String tokenString, KeycloakDeployment deployment) throws VerificationException {
+		return AdapterTokenVerifier.createVerifier(tokenString, deployment, true, AccessToken.class)
+				.withChecks(new IssuedFor(deployment.getResourceName())).verify().getToken();
+	}
+
+	/**
+	 * Returns whether the token names the given client as audience or
+	 * authorized party.
+	 *
+	 * @param token
+	 *            the token
+	 * @param resource
+	 *            the client id
+	 * @return boolean
+	 */
+	static boolean isIssuedFor(JsonWebToken token, String resource) {
+		return resource != null && (resource.equals(token.getIssuedFor()) || token.hasAudience(resource));
+	}
+
+	/**
+	 * Check that the token was issued for the client of the deployment.
+	 */
+	static final class IssuedFor implements TokenVerifier.Predicate<JsonWebToken> {
+		private final String resource;
+
+		IssuedFor(String resource) {
+			this.resource = resource;
+		}
+
+		@Override
+		public boolean test(JsonWebToken token) throws VerificationException {
+			if (!isIssuedFor(token, resource)) {
+				throw new VerificationException("Token is not issued for " + resource);
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,331 @@
+package org.jenkinsci.plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.keycloak.util.JsonSerialization;
+
+import hudson.init.Terminator;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Structured audit stream of the authentication events of keycloak sessions,
+ * written as JSON lines to <code>logs/keycloak-audit.log</code> in
+ * JENKINS_HOME.
+ *
+ * Request threads only put the event into a bounded ring buffer, which is a
+ * single compare and set. A task on the Jenkins timer drains the buffer and
+ * appends the events in one batch, rotating the file when it grows beyond the
+ * maximum size. Events which do not fit into a full buffer are dropped and
+ * counted.
+ *
+ * @author dev.lauer@elnarion.de
+ *
+ */
+public final class AuthAuditLog {
+
+	private static final Logger LOGGER = Logger.getLogger(AuthAuditLog.class.getName());
+
+	private static final String PROPERTY_PREFIX = AuthAuditLog.class.getName();
+
+	/**
+	 * Whether audit events are recorded at all.
+	 */
+	static final boolean ENABLED = Boolean.parseBoolean(System.getProperty(PROPERTY_PREFIX + ".enabled", "true"));
+
+	/**
+	 * Number of events the buffer holds until the writer drained it.
+	 */
+	static final int BUFFER_SIZE = Math.max(2, Integer.getInteger(PROPERTY_PREFIX + ".bufferSize", 8192));
+
+	/**
+	 * Delay in milliseconds after the first event of a batch until it is written.
+	 */
+	static final int FLUSH_MILLIS = Math.max(1, Integer.getInteger(PROPERTY_PREFIX + ".flushMillis", 1000));
+
+	/**
+	 * Size in bytes after which the log file is rotated.
+	 */
+	static final long MAX_FILE_BYTES = Math.max(1,
+			Long.getLong(PROPERTY_PREFIX + ".maxFileBytes", 10L * 1024 * 1024));
+
+	/**
+	 * Number of rotated log files kept besides the current one.
+	 */
+	static final int MAX_FILES = Math.max(0, Integer.getInteger(PROPERTY_PREFIX + ".maxFiles", 5));
+
+	private static final String FILE_NAME = "logs/keycloak-audit.log";
+
+	private static final AuthAuditLog INSTANCE = new AuthAuditLog(BUFFER_SIZE, null, MAX_FILE_BYTES, MAX_FILES);
+
+	/**
+	 * Types of audit events.
+	 */
+	public enum EventType {
+		/** a user logged in */
+		LOGIN("login"),
+		/** the tokens of a session were refreshed */
+		REFRESH("refresh"),
+		/** a refresh of the tokens of a session failed */
+		REFRESH_FAILURE("refresh-failure"),
+		/** a session was logged out by the refresh filter */
+		FORCED_LOGOUT("forced-logout"),
+		/** a user logged out, or keycloak ended the session */
+		LOGOUT("logout");
+
+		private final String jsonName;
+
+		EventType(String jsonName) {
+			this.jsonName = jsonName;
+		}
+	}
+
+	private final AtomicReferenceArray<Event> slots;
+
+	private final int mask;
+
+	// next sequence to claim by a producer and next sequence to drain by the writer
+	private final AtomicLong tail = new AtomicLong();
+
+	private final AtomicLong head = new AtomicLong();
+
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+	private final LongAdder dropped = new LongAdder();
+
+	private final File file;
+
+	private final long maxFileBytes;
+
+	private final int maxFiles;
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity
+	 *            the minimum number of buffered events, rounded up to a power of
+	 *            two
+	 * @param file
+	 *            the log file, null for the file in JENKINS_HOME
+	 * @param maxFileBytes
+	 *            the size after which the file is rotated
+	 * @param maxFiles
+	 *            the number of rotated files kept
+	 */
+	AuthAuditLog(int capacity, File file, long maxFileBytes, int maxFiles) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.slots = new AtomicReferenceArray<>(size);
+		this.mask = size - 1;
+		this.file = file;
+		this.maxFileBytes = maxFileBytes;
+		this.maxFiles = maxFiles;
+	}
+
+	/**
+	 * Returns the JVM wide audit log.
+	 *
+	 * @return {@link AuthAuditLog}
+	 */
+	public static AuthAuditLog get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Records an event of a keycloak session.
+	 *
+	 * @param type
+	 *            the {@link EventType}
+	 * @param ka
+	 *            the {@link KeycloakAuthentication} of the session
+	 * @param detail
+	 *            the reason or error, may be null
+	 */
+	public void record(EventType type, KeycloakAuthentication ka, String detail) {
+		if (ENABLED) {
+			record(new Event(type, ka.getName(), ka.getSubject(), ka.getSessionId(), detail));
+		}
+	}
+
+	/**
+	 * Records an event without a session object, e.g. a back-channel logout.
+	 *
+	 * @param type
+	 *            the {@link EventType}
+	 * @param user
+	 *            the user name, may be null
+	 * @param subject
+	 *            the keycloak user id, may be null
+	 * @param sessionId
+	 *            the keycloak session id, may be null
+	 * @param detail
+	 *            the reason or error, may be null
+	 */
+	public void record(EventType type, String user, String subject, String sessionId, String detail) {
+		if (ENABLED) {
+			record(new Event(type, user, subject, sessionId, detail));
+		}
+	}
+
+	void record(Event event) {
+		while (true) {
+			long seq = tail.get();
+			if (seq - head.get() >= slots.length()) {
+				dropped.increment();
+				return;
+			}
+			if (tail.compareAndSet(seq, seq + 1)) {
+				slots.set((int) seq & mask, event);
+				break;
+			}
+		}
+		if (flushScheduled.compareAndSet(false, true)) {
+			Timer.get().schedule(this::flushQuietly, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Writes all buffered events to the log file.
+	 *
+	 * @throws IOException
+	 *             if the file could not be written
+	 */
+	synchronized void flush() throws IOException {
+		flushScheduled.set(false);
+		List<Event> batch = drain();
+		if (batch.isEmpty()) {
+			return;
+		}
+		File target = file != null ? file : defaultFile();
+		if (target == null) {
+			dropped.add(batch.size());
+			return;
+		}
+		StringBuilder lines = new StringBuilder(batch.size() * 160);
+		for (Event event : batch) {
+			lines.append(event.toJson()).append('\n');
+		}
+		byte[] bytes = lines.toString().getBytes(StandardCharsets.UTF_8);
+		Files.createDirectories(target.toPath().getParent());
+		if (target.length() > 0 && target.length() + bytes.length > maxFileBytes) {
+			rotate(target);
+		}
+		Files.write(target.toPath(), bytes, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (IOException | RuntimeException e) {
+			LOGGER.log(Level.WARNING, "Keycloak audit events could not be written", e);
+		}
+	}
+
+	private List<Event> drain() {
+		List<Event> batch = new ArrayList<>();
+		long seq = head.get();
+		while (true) {
+			int index = (int) seq & mask;
+			Event event = slots.get(index);
+			if (event == null) {
+				// empty, or claimed by a producer which has not stored its event yet
+				break;
+			}
+			slots.set(index, null);
+			head.set(++seq);
+			batch.add(event);
+		}
+		return batch;
+	}
+
+	private void rotate(File target) throws IOException {
+		if (maxFiles == 0) {
+			Files.delete(target.toPath());
+			return;
+		}
+		for (int i = maxFiles - 1; i > 0; i--) {
+			File older = new File(target.getPath() + "." + i);
+			if (older.exists()) {
+				Files.move(older.toPath(), new File(target.getPath() + "." + (i + 1)).toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		Files.move(target.toPath(), new File(target.getPath() + ".1").toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static File defaultFile() {
+		Jenkins j = Jenkins.getInstanceOrNull();
+		return j == null ? null : new File(j.getRootDir(), FILE_NAME);
+	}
+
+	/**
+	 * Returns the number of events which were dropped as the buffer was full.
+	 *
+	 * @return long
+	 */
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Writes the remaining events when Jenkins shuts down.
+	 */
+	@Terminator
+	public static void shutdown() {
+		INSTANCE.flushQuietly();
+	}
+
+	/**
+	 * A single audit event.
+	 */
+	static final class Event {
+		private final long timestamp = System.currentTimeMillis();
+
+		private final EventType type;
+
+		private final String user;
+
+		private final String subject;
+
+		private final String sessionId;
+
+		private final String detail;
+
+		Event(EventType type, String user, String subject, String sessionId, String detail) {
+			this.type = type;
+			this.user = user;
+			this.subject = subject;
+			this.sessionId = sessionId;
+			this.detail = detail;
+		}
+
+		String toJson() throws IOException {
+			Map<String, Object> json = new LinkedHashMap<>();
+			json.put("time", Instant.ofEpochMilli(timestamp).toString());
+			json.put("type", type.jsonName);
+			json.put("user", user);
+			json.put("subject", subject);
+			json.put("session", sessionId);
+			if (detail != null) {
+				json.put("detail", detail);
+			}
+			return JsonSerialization.writeValueAsString(json);
+		}
+	}
+}
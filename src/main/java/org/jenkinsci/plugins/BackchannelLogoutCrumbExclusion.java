@@ -0,0 +1,36 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import hudson.Extension;
+import hudson.security.csrf.CrumbExclusion;
+
+/**
+ * Lets keycloak post logout tokens to
+ * {@link KeycloakSecurityRealm#doBackchannelLogout} without a crumb, the
+ * signed token authenticates the request.
+ *
+ * @author dev.lauer@elnarion.de
+ *
+ */
+@Extension
+public class BackchannelLogoutCrumbExclusion extends CrumbExclusion {
+
+	private static final String PATH = "/securityRealm/backchannelLogout";
+
+	@Override
+	public boolean process(HttpServletRequest req, HttpServletResponse resp, FilterChain chain)
+			throws IOException, ServletException {
+		String pathInfo = req.getPathInfo();
+		if (PATH.equals(pathInfo)) {
+			chain.doFilter(req, resp);
+			return true;
+		}
+		return false;
+	}
+}
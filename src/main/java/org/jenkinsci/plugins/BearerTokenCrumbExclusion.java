@@ -0,0 +1,33 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import hudson.Extension;
+import hudson.security.csrf.CrumbExclusion;
+
+/**
+ * Lets requests authenticated by a keycloak bearer token pass the crumb check,
+ * which runs before the {@link BearerTokenFilter}. Like API tokens, the token
+ * in the Authorization header can not be sent by a foreign page.
+ *
+ * @author dev.lauer@elnarion.de
+ *
+ */
+@Extension
+public class BearerTokenCrumbExclusion extends CrumbExclusion {
+
+	@Override
+	public boolean process(HttpServletRequest req, HttpServletResponse resp, FilterChain chain)
+			throws IOException, ServletException {
+		if (BearerTokenFilter.hasValidToken(req)) {
+			chain.doFilter(req, resp);
+			return true;
+		}
+		return false;
+	}
+}
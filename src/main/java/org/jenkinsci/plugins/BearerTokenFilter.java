@@ -0,0 +1,249 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.acegisecurity.Authentication;
+import org.acegisecurity.providers.anonymous.AnonymousAuthenticationToken;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.common.VerificationException;
+import org.keycloak.jose.jws.JWSInput;
+import org.keycloak.jose.jws.JWSInputException;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.JsonWebToken;
+import org.keycloak.util.TokenUtil;
+
+import hudson.Util;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.security.SecurityRealm;
+import jenkins.model.Jenkins;
+
+/**
+ * Filter to authenticate requests carrying a Keycloak access token in an
+ * {@code Authorization: Bearer} header, e.g. REST API calls of scripts.
+ *
+ * The token is verified locally with the keys of the realm configured for the
+ * request host or path and must be issued for the client of that realm.
+ * Verified tokens are kept in a bounded cache keyed by the deployment and the
+ * hash of the token until the token expires, so repeated calls with the same
+ * token skip the signature check.
+ *
+ * @author dev.lauer@elnarion.de
+ *
+ */
+public class BearerTokenFilter implements Filter {
+
+	private static final Logger LOGGER = Logger.getLogger(BearerTokenFilter.class.getName());
+
+	private static final String BEARER_PREFIX = "Bearer ";
+
+	/**
+	 * Maximum number of verified tokens kept in the cache.
+	 */
+	static final int CACHE_SIZE = Math.max(1, Integer.getInteger(BearerTokenFilter.class.getName() + ".cacheSize", 10000));
+
+	private static final ExpiringLruCache<String, KeycloakAuthentication> VERIFIED_TOKENS = new ExpiringLruCache<>(
+			CACHE_SIZE);
+
+	private transient boolean initCalled = false;
+
+	/**
+	 * Constructor
+	 */
+	public BearerTokenFilter() {
+	}
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+		initCalled = true;
+	}
+
+	@Override
+	public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
+			throws IOException, ServletException {
+		KeycloakSecurityRealm ksr = activeRealm();
+		if (ksr == null || !(req instanceof HttpServletRequest)) {
+			chain.doFilter(req, res);
+			return;
+		}
+		HttpServletRequest httpRequest = (HttpServletRequest) req;
+		String token = bearerToken(ksr, httpRequest);
+		if (token == null) {
+			chain.doFilter(req, res);
+			return;
+		}
+		HttpServletResponse httpResponse = (HttpServletResponse) res;
+		KeycloakAuthentication ka;
+		try {
+			ka = authenticate(ksr, httpRequest, token);
+		} catch (IOException e) {
+			// keycloak could not check the token, the client may retry later
+			LOGGER.log(Level.WARNING, "Bearer token could not be checked with keycloak", e);
+			httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+		if (ka == null) {
+			httpResponse.setHeader("WWW-Authenticate", "Bearer error=\"invalid_token\"");
+			httpResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+			return;
+		}
+		try (ACLContext ctx = ACL.as(ka)) {
+			chain.doFilter(req, res);
+		}
+	}
+
+	/**
+	 * Returns whether the request carries a bearer token this filter accepts. The
+	 * crumb filter of Jenkins runs before the plugin filters and lets such
+	 * requests pass through {@link BearerTokenCrumbExclusion}.
+	 *
+	 * @param request
+	 *            the {@link HttpServletRequest}
+	 * @return boolean
+	 */
+	static boolean hasValidToken(HttpServletRequest request) {
+		KeycloakSecurityRealm ksr = activeRealm();
+		String token = ksr == null ? null : bearerToken(ksr, request);
+		if (token == null) {
+			return false;
+		}
+		try {
+			return authenticate(ksr, request, token) != null;
+		} catch (IOException e) {
+			// the filter answers with 503 instead of the crumb filter with 403
+			return true;
+		}
+	}
+
+	// the token of an otherwise anonymous request, if bearer tokens are accepted
+	private static String bearerToken(KeycloakSecurityRealm ksr, HttpServletRequest request) {
+		if (!ksr.isKeycloakBearerAuthentication()) {
+			return null;
+		}
+		String header = request.getHeader("Authorization");
+		if (header == null || !header.regionMatches(true, 0, BEARER_PREFIX, 0, BEARER_PREFIX.length())
+				|| !isAnonymous(Jenkins.getAuthentication())) {
+			return null;
+		}
+		return header.substring(BEARER_PREFIX.length()).trim();
+	}
+
+	private static KeycloakAuthentication authenticate(KeycloakSecurityRealm ksr, HttpServletRequest request,
+			String token) throws IOException {
+		KeycloakDeploymentRegistry registry = ksr.getDeploymentRegistry();
+		String deploymentKey = registry.resolveKey(request);
+		KeycloakDeployment deployment = registry.get(deploymentKey);
+		String key = deploymentKey + ':' + hash(token);
+		long now = System.currentTimeMillis();
+		KeycloakAuthentication ka = VERIFIED_TOKENS.get(key, now);
+		if (ka != null) {
+			return ka;
+		}
+		AccessToken accessToken;
+		try {
+			accessToken = AccessTokenVerifier.verify(token, deployment);
+		} catch (VerificationException e) {
+			if (ksr.isKeycloakTokenIntrospection() && needsIntrospection(token)) {
+				return TokenIntrospector.get().authenticate(deployment, token);
+			}
+			LOGGER.log(Level.FINE, "Bearer token rejected: {0}", e.getMessage());
+			return null;
+		}
+		if (accessToken.getPreferredUsername() == null) {
+			LOGGER.log(Level.FINE, "Bearer token of {0} has no preferred_username", accessToken.getSubject());
+			return null;
+		}
+		ka = new KeycloakAuthentication(accessToken);
+		ka.setDeploymentKey(deploymentKey);
+		Long exp = accessToken.getExp();
+		if (exp != null) {
+			VERIFIED_TOKENS.put(key, ka, exp.longValue() * 1000L);
+		}
+		return ka;
+	}
+
+	// opaque tokens and offline tokens, which keycloak signs with a key of its own,
+	// can only be checked by keycloak itself, other JWTs failing the local
+	// verification are rejected without asking keycloak
+	private static boolean needsIntrospection(String token) {
+		try {
+			JsonWebToken jwt = new JWSInput(token).readJsonContent(JsonWebToken.class);
+			return TokenUtil.TOKEN_TYPE_OFFLINE.equals(jwt.getType());
+		} catch (JWSInputException e) {
+			return true;
+		}
+	}
+
+	static String hash(String token) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return Util.toHexString(digest.digest(token.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	private static boolean isAnonymous(Authentication authentication) {
+		return authentication == null || authentication instanceof AnonymousAuthenticationToken;
+	}
+
+	private static KeycloakSecurityRealm activeRealm() {
+		Jenkins j = Jenkins.getInstanceOrNull();
+		SecurityRealm sr = j == null ? null : j.getSecurityRealm();
+		return sr instanceof KeycloakSecurityRealm ? (KeycloakSecurityRealm) sr : null;
+	}
+
+	/**
+	 * Returns the number of verified tokens currently cached.
+	 *
+	 * @return int
+	 */
+	public static int getCacheSize() {
+		return VERIFIED_TOKENS.size();
+	}
+
+	/**
+	 * Returns the number of requests whose token was found in the cache.
+	 *
+	 * @return long
+	 */
+	public static long getCacheHitCount() {
+		return VERIFIED_TOKENS.getHitCount();
+	}
+
+	/**
+	 * Returns the number of requests whose token had to be verified.
+	 *
+	 * @return long
+	 */
+	public static long getCacheMissCount() {
+		return VERIFIED_TOKENS.getMissCount();
+	}
+
+	@Override
+	public void destroy() {
+	}
+
+	/**
+	 * Returns whether the initialization method of this filter is already called.
+	 *
+	 * @return true or false
+	 */
+	public boolean isInitCalled() {
+		return initCalled;
+	}
+}
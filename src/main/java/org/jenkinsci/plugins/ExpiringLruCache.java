@@ -0,0 +1,209 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size bounded cache with least recently used eviction where every entry
+ * carries its own expiry time. Concurrent loads of the same missing key are
+ * coalesced into a single load.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ *
+ * @author dev.lauer@elnarion.de
+ *
+ */
+final class ExpiringLruCache<K, V> {
+
+	private final LinkedHashMap<K, Entry<V>> entries;
+
+	private final ConcurrentMap<K, CompletableFuture<V>> loading = new ConcurrentHashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Constructor
+	 *
+	 * @param maxSize the maximum number of entries
+	 */
+	ExpiringLruCache(final int maxSize) {
+		this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached value if it is present and not expired.
+	 *
+	 * @param key the key
+	 * @param now the current time in epoch milliseconds
+	 * @return the value or null
+	 */
+	V get(K key, long now) {
+		Entry<V> entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+			if (entry != null && entry.expiresAt <= now) {
+				entries.remove(key);
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.value;
+	}
+
+	/**
+	 * Returns the cached value or loads it. If the key is already being loaded by
+	 * another thread, the caller waits for that load and shares its result.
+	 *
+	 * @param key the key
+	 * @param now the current time in epoch milliseconds
+	 * @param loader the {@link Loader} used if the value is not cached
+	 * @return the value
+	 * @throws IOException if the value could not be loaded
+	 */
+	V get(K key, long now, Loader<V> loader) throws IOException {
+		V value = get(key, now);
+		if (value != null) {
+			return value;
+		}
+		CompletableFuture<V> mine = new CompletableFuture<>();
+		CompletableFuture<V> running = loading.putIfAbsent(key, mine);
+		if (running != null) {
+			return await(running);
+		}
+		try {
+			value = loader.load();
+			put(key, value, loader.expiresAt(value));
+			mine.complete(value);
+			return value;
+		} catch (IOException | RuntimeException e) {
+			mine.completeExceptionally(e);
+			throw e;
+		} finally {
+			loading.remove(key, mine);
+		}
+	}
+
+	private static <V> V await(CompletableFuture<V> running) throws IOException {
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a concurrent load", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Caches a value until the given time.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @param expiresAt the expiry time in epoch milliseconds
+	 */
+	void put(K key, V value, long expiresAt) {
+		synchronized (entries) {
+			entries.put(key, new Entry<>(value, expiresAt));
+		}
+	}
+
+	/**
+	 * Removes all entries.
+	 */
+	void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Returns the number of cached entries, including expired ones which were not
+	 * evicted yet.
+	 *
+	 * @return int
+	 */
+	int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	long getHitCount() {
+		return hits.get();
+	}
+
+	long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the share of lookups answered from the cache.
+	 *
+	 * @return double - between 0 and 1, 0 if there was no lookup yet
+	 */
+	double getHitRatio() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	/**
+	 * Loads values missing in the cache.
+	 *
+	 * @param <V> the value type
+	 */
+	interface Loader<V> {
+		/**
+		 * Loads the value.
+		 *
+		 * @return the value, never null
+		 * @throws IOException if the value could not be loaded
+		 */
+		V load() throws IOException;
+
+		/**
+		 * Returns until when the loaded value may be cached.
+		 *
+		 * @param value the loaded value
+		 * @return the expiry time in epoch milliseconds
+		 */
+		long expiresAt(V value);
+	}
+
+	private static final class Entry<V> {
+		private final V value;
+		private final long expiresAt;
+
+		private Entry(V value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package org.jenkinsci.plugins;
+
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.GrantedAuthorityImpl;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Canonical pool of the authorities built from keycloak roles. Sessions of
+ * users with the same roles share one authority instance per role name
+ * instead of holding their own copies. The pool holds its entries weakly, so
+ * roles which are no longer used by any session are collected.
+ *
+ * @author dev.lauer@elnarion.de
+ *
+ */
+final class GrantedAuthorities {
+
+	/**
+	 * Whether authorities are interned.
+	 */
+	static final boolean INTERN = Boolean
+			.parseBoolean(System.getProperty(GrantedAuthorities.class.getName() + ".intern", Boolean.TRUE.toString()));
+
+	// GrantedAuthorityImpl implements equals and hashCode on the role name
+	private static final Interner<GrantedAuthority> POOL = Interners.newWeakInterner();
+
+	private GrantedAuthorities() {
+	}
+
+	/**
+	 * Returns the authority of the given role.
+	 *
+	 * @param role
+	 *            the role name
+	 * @return {@link GrantedAuthority} the canonical instance if interning is
+	 *         enabled
+	 */
+	static GrantedAuthority of(String role) {
+		GrantedAuthority authority = new GrantedAuthorityImpl(role);
+		return INTERN ? POOL.intern(authority) : authority;
+	}
+}
@@ -1,15 +1,25 @@
 package org.jenkinsci.plugins;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OptionalDataException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import hudson.security.SecurityRealm;
+import hudson.util.Secret;
 
 import org.acegisecurity.GrantedAuthority;
-import org.acegisecurity.GrantedAuthorityImpl;
 import org.acegisecurity.providers.AbstractAuthenticationToken;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.common.VerificationException;
 import org.keycloak.representations.AccessToken;
 import org.keycloak.representations.AccessTokenResponse;
 import org.keycloak.representations.IDToken;
@@ -23,11 +33,35 @@ public class KeycloakAuthentication extends AbstractAuthenticationToken  {
 
 
 	private static final long serialVersionUID = 1L;
+	private static final Logger LOGGER = Logger.getLogger(KeycloakAuthentication.class.getName());
+	/**
+	 * Upper bound in seconds of the random delay added to the access token
+	 * deadline of a restored session, so sessions restored together do not
+	 * refresh at the same moment.
+	 */
+	static final int RESTORE_JITTER_SECONDS = Math.max(0,
+			Integer.getInteger(KeycloakAuthentication.class.getName() + ".restoreJitterSeconds", 30));
 	private final String userName;
-	private String refreshToken;
-	private String accessToken;
-	private transient AccessTokenResponse accessTokenResponse = null;
-	private Calendar lastRefresh = Calendar.getInstance();
+	// written encrypted by writeObject
+	private transient String refreshToken;
+	private transient String accessToken;
+	private long lastRefreshMillis = System.currentTimeMillis();
+	// only the lifetimes of the last token response are kept, the response itself
+	// with the ID token is dropped
+	private transient int expiresIn;
+	private transient int refreshExpiresIn;
+	// key of the deployment which issued the tokens, null for the default one
+	private String deploymentKey;
+	// keycloak session and user id, to find the session on a back-channel logout
+	private String sessionId;
+	private String subject;
+	// absolute deadlines in epoch milliseconds, derived once per token response
+	private transient volatile long accessExpiresAt;
+	private transient volatile long refreshExpiresAt;
+	private transient volatile String verifiedAccessToken;
+	private transient volatile long verifiedAccessTokenExpiresAt;
+	private transient volatile long lastAccess;
+	private transient volatile boolean refreshScheduled;
 	
 	/**
 	 * Constructor
@@ -39,11 +73,32 @@ public class KeycloakAuthentication extends AbstractAuthenticationToken  {
 	public KeycloakAuthentication(IDToken idToken, AccessToken accessToken, String refreshToken, AccessTokenResponse tokenResponse) {
 		super(buildRoles(accessToken));
 		this.userName = idToken.getPreferredUsername();
+		if (accessToken != null) {
+			// the sid of a logout token is the keycloak user session, which access tokens
+			// carry as session_state
+			this.sessionId = accessToken.getSessionState();
+			this.subject = accessToken.getSubject();
+		}
 		this.setRefreshToken(refreshToken);
 		this.setAccessTokenResponse(tokenResponse);
 		setAuthenticated(true);
 	}
 
+	/**
+	 * Constructor for a verified bearer token, which has no refresh token and is
+	 * valid until the token expires.
+	 * @param accessToken the verified keycloak access token
+	 */
+	public KeycloakAuthentication(AccessToken accessToken) {
+		super(buildRoles(accessToken));
+		this.userName = accessToken.getPreferredUsername();
+		Long exp = accessToken.getExp();
+		long expiresAt = exp == null ? 0 : exp.longValue() * 1000L;
+		this.accessExpiresAt = expiresAt;
+		this.refreshExpiresAt = expiresAt;
+		setAuthenticated(true);
+	}
+
 	@SuppressWarnings("unchecked")
 	private static GrantedAuthority[] buildRoles(AccessToken accessToken) {
 		List<GrantedAuthority> roles;
@@ -51,13 +106,13 @@ public class KeycloakAuthentication extends AbstractAuthenticationToken  {
 
 		if (accessToken != null && accessToken.getRealmAccess() != null) {
 			for (String role : accessToken.getRealmAccess().getRoles()) {
-				roles.add(new GrantedAuthorityImpl(role));
+				roles.add(GrantedAuthorities.of(role));
 			}
 		}
 
 		if(accessToken != null && accessToken.getOtherClaims().containsKey("roles")) {
 			for(String role : (List<String>) accessToken.getOtherClaims().get("roles")) {
-				roles.add(new GrantedAuthorityImpl(role));
+				roles.add(GrantedAuthorities.of(role));
 			}
 		}
 
@@ -113,22 +168,73 @@ public class KeycloakAuthentication extends AbstractAuthenticationToken  {
 	}
 
 	/**
-	 * Returns the latest AccessTokenResponse
+	 * Returns the key of the keycloak deployment which issued the tokens
+	 * @return {@link String} the deployment key, null for the default deployment
+	 */
+	String getDeploymentKey() {
+		return deploymentKey;
+	}
+
+	/**
+	 * Sets the key of the keycloak deployment which issued the tokens
+	 * @param deploymentKey {@link String}
+	 */
+	void setDeploymentKey(String deploymentKey) {
+		this.deploymentKey = deploymentKey;
+	}
+
+	/**
+	 * Returns the latest AccessTokenResponse, rebuilt from the tokens and
+	 * lifetimes kept by this authentication. Each call returns a new instance,
+	 * which carries no ID token, session state or scope of the original
+	 * response.
 	 * 
-	 * @return {@link AccessTokenResponse}
+	 * @return {@link AccessTokenResponse} or null if no token response was set
+	 * @deprecated the response is no longer kept, use {@link #getAccessToken()},
+	 *             {@link #getRefreshToken()}, {@link #getAccessExpiresAt()} and
+	 *             {@link #getRefreshExpiresAt()}
 	 */
+	@Deprecated
 	public AccessTokenResponse getAccessTokenResponse() {
-		return accessTokenResponse;
+		if (accessToken == null && refreshToken == null) {
+			return null;
+		}
+		AccessTokenResponse atr = new AccessTokenResponse();
+		atr.setToken(accessToken);
+		atr.setRefreshToken(refreshToken);
+		atr.setTokenType("Bearer");
+		atr.setExpiresIn(expiresIn);
+		atr.setRefreshExpiresIn(refreshExpiresIn);
+		return atr;
 	}
 
 	/**
-	 * Sets the latest AccessTokenResponse
+	 * Sets the latest AccessTokenResponse. Only the tokens and their lifetimes are
+	 * kept.
 	 * @param accessTokenResponse
 	 */
 	public void setAccessTokenResponse(AccessTokenResponse accessTokenResponse) {
-		this.accessTokenResponse = accessTokenResponse;
+		this.expiresIn = (int) accessTokenResponse.getExpiresIn();
+		this.refreshExpiresIn = (int) accessTokenResponse.getRefreshExpiresIn();
+		setAccessToken(accessTokenResponse.getToken());
 		setRefreshToken(accessTokenResponse.getRefreshToken());
-		setLastRefresh(new Date());
+		setLastRefreshMillis(System.currentTimeMillis());
+	}
+
+	/**
+	 * Returns the id of the keycloak session of the login
+	 * @return {@link String} the session id, null if unknown
+	 */
+	String getSessionId() {
+		return sessionId;
+	}
+
+	/**
+	 * Returns the keycloak id of the user
+	 * @return {@link String} the subject, null if unknown
+	 */
+	String getSubject() {
+		return subject;
 	}
 
 	/**
@@ -136,7 +242,7 @@ public class KeycloakAuthentication extends AbstractAuthenticationToken  {
 	 * @return {@link Date}
 	 */
 	public Date getLastRefresh() {
-		return lastRefresh.getTime();
+		return new Date(lastRefreshMillis);
 	}
 
 	/**
@@ -144,42 +250,243 @@ public class KeycloakAuthentication extends AbstractAuthenticationToken  {
 	 * @return {@link Calendar}
 	 */
 	public Calendar getLastRefreshDateAsCalendar() {
-		return lastRefresh;
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(lastRefreshMillis);
+		return calendar;
 	}
+
+	/**
+	 * Get the time the token is from
+	 * @return long - the time in epoch milliseconds
+	 */
+	public long getLastRefreshMillis() {
+		return lastRefreshMillis;
+	}
+
 	/**
 	 * Set the date the token is from
 	 * @param lastRefresh
 	 */
 	public void setLastRefresh(Date lastRefresh) {
-		this.lastRefresh.setTime(lastRefresh);
+		setLastRefreshMillis(lastRefresh.getTime());
 	}
-	
+
+	private void setLastRefreshMillis(long lastRefreshMillis) {
+		this.lastRefreshMillis = lastRefreshMillis;
+		if (accessToken == null && refreshToken == null) {
+			accessExpiresAt = 0;
+			refreshExpiresAt = 0;
+		} else {
+			accessExpiresAt = lastRefreshMillis + expiresIn * 1000L;
+			refreshExpiresAt = lastRefreshMillis + refreshExpiresIn * 1000L;
+		}
+	}
+
+	/**
+	 * Returns the time the access token expires.
+	 *
+	 * @return long - the time in epoch milliseconds, 0 if no token is present
+	 */
+	public long getAccessExpiresAt() {
+		return accessExpiresAt;
+	}
+
+	/**
+	 * Returns the time the refresh token expires.
+	 *
+	 * @return long - the time in epoch milliseconds, 0 if no token is present
+	 */
+	public long getRefreshExpiresAt() {
+		return refreshExpiresAt;
+	}
+
 	/**
 	 * Checks whether the refresh token is expired or not.
 	 * 
 	 * @return boolean - the result of the check
 	 */
-	public boolean isRefreshExpired()
-	{
-		if(accessTokenResponse==null)
-			return true;
-		Calendar compareDate = Calendar.getInstance();
-		compareDate.add(Calendar.SECOND, (int)(accessTokenResponse.getRefreshExpiresIn())*-1);
-		return compareDate.after(lastRefresh);
+	public boolean isRefreshExpired() {
+		return isRefreshExpired(System.currentTimeMillis());
 	}
-	
+
+	/**
+	 * Checks whether the refresh token is expired at the given time.
+	 *
+	 * @param now the time to check in epoch milliseconds
+	 * @return boolean - the result of the check
+	 */
+	public boolean isRefreshExpired(long now) {
+		return now > refreshExpiresAt;
+	}
+
 	/**
 	 * Checks whether the access token is expired or not.
 	 * 
 	 * @return boolean - the result of the check
 	 */
-	public boolean isAccessExpired()
-	{
-		if(accessTokenResponse==null)
-			return true;
-		Calendar compareDate = Calendar.getInstance();
-		compareDate.add(Calendar.SECOND, (int)(accessTokenResponse.getExpiresIn())*-1);
-		return compareDate.after(lastRefresh);
-	}	
+	public boolean isAccessExpired() {
+		return isAccessExpired(System.currentTimeMillis());
+	}
+
+	/**
+	 * Checks whether the access token is expired at the given time.
+	 *
+	 * @param now the time to check in epoch milliseconds
+	 * @return boolean - the result of the check
+	 */
+	public boolean isAccessExpired(long now) {
+		return now > accessExpiresAt;
+	}
+
+	/**
+	 * Verifies the signature, expiry, not-before time and audience of the current
+	 * access token with the keys of the given deployment. The signature of a token
+	 * is only checked once, later calls for the same token only check its
+	 * lifetime.
+	 *
+	 * @param deployment the {@link KeycloakDeployment} providing the realm keys
+	 * @return boolean - true if the token is valid, false if it is invalid or not
+	 *         active (anymore) and has to be refreshed
+	 */
+	public boolean verifyAccessToken(KeycloakDeployment deployment) {
+		String token = accessToken;
+		if (token == null) {
+			return false;
+		}
+		if (!token.equals(verifiedAccessToken)) {
+			AccessToken verified;
+			try {
+				verified = AccessTokenVerifier.verify(token, deployment);
+			} catch (VerificationException e) {
+				LOGGER.log(Level.FINE, "Access token of {0} is not valid: {1}", new Object[] { userName, e.getMessage() });
+				return false;
+			}
+			Long exp = verified.getExp();
+			verifiedAccessTokenExpiresAt = exp == null ? Long.MAX_VALUE : exp.longValue() * 1000L;
+			verifiedAccessToken = token;
+		}
+		long now = System.currentTimeMillis();
+		return now <= verifiedAccessTokenExpiresAt && !isAccessExpired(now);
+	}
+
+	/**
+	 * Records the time of the latest request of this session.
+	 *
+	 * @param now the current time in milliseconds
+	 */
+	void markAccessed(long now) {
+		this.lastAccess = now;
+	}
+
+	/**
+	 * Returns the time of the latest request of this session.
+	 *
+	 * @return long - the time in milliseconds
+	 */
+	long getLastAccess() {
+		return lastAccess;
+	}
+
+	/**
+	 * Returns whether this session is refreshed by the {@link TokenRefreshScheduler}.
+	 *
+	 * @return boolean
+	 */
+	boolean isRefreshScheduled() {
+		return refreshScheduled;
+	}
+
+	/**
+	 * Marks this session as scheduled for background refresh.
+	 *
+	 * @return boolean - false if the session was already scheduled
+	 */
+	synchronized boolean claimRefreshSchedule() {
+		if (refreshScheduled) {
+			return false;
+		}
+		refreshScheduled = true;
+		return true;
+	}
+
+	/**
+	 * Removes the background refresh mark of this session.
+	 */
+	synchronized void releaseRefreshSchedule() {
+		refreshScheduled = false;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		String encrypted = null;
+		if (accessToken != null || refreshToken != null) {
+			try {
+				encrypted = Secret.fromString(nullToEmpty(accessToken) + '\n' + nullToEmpty(refreshToken))
+						.getEncryptedValue();
+			} catch (RuntimeException e) {
+				// without the confidential store the session is persisted without tokens and
+				// logged out on restore
+				LOGGER.log(Level.FINE, "Tokens of " + userName + " could not be encrypted", e);
+			}
+		}
+		out.writeObject(encrypted);
+		out.writeInt(expiresIn);
+		out.writeInt(refreshExpiresIn);
+		out.writeLong(accessExpiresAt);
+		out.writeLong(refreshExpiresAt);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		String encrypted;
+		try {
+			encrypted = (String) in.readObject();
+		} catch (OptionalDataException e) {
+			if (!e.eof) {
+				throw e;
+			}
+			// written by a version which kept the tokens in clear fields, the session is
+			// restored without tokens and logged out on its next request as before
+			LOGGER.log(Level.FINE, "Session of {0} has no token state", userName);
+			return;
+		}
+		expiresIn = in.readInt();
+		refreshExpiresIn = in.readInt();
+		long storedAccessExpiresAt = in.readLong();
+		long storedRefreshExpiresAt = in.readLong();
+		Secret secret = null;
+		if (encrypted != null) {
+			try {
+				secret = Secret.decrypt(encrypted);
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.FINE, "Tokens of " + userName + " could not be decrypted", e);
+			}
+		}
+		if (secret == null) {
+			// deadlines stay 0, the session is logged out on its next request
+			return;
+		}
+		String plain = secret.getPlainText();
+		int separator = plain.indexOf('\n');
+		if (separator < 0) {
+			return;
+		}
+		accessToken = emptyToNull(plain.substring(0, separator));
+		refreshToken = emptyToNull(plain.substring(separator + 1));
+		refreshExpiresAt = storedRefreshExpiresAt;
+		// sessions are refreshed lazily on their next request, the random delay
+		// spreads the refreshes of sessions whose tokens expired during the restart
+		long jitter = ThreadLocalRandom.current().nextLong(TimeUnit.SECONDS.toMillis(RESTORE_JITTER_SECONDS) + 1);
+		accessExpiresAt = Math.min(Math.max(storedAccessExpiresAt, System.currentTimeMillis() + jitter),
+				Math.max(storedAccessExpiresAt, storedRefreshExpiresAt));
+	}
+
+	private static String nullToEmpty(String value) {
+		return value == null ? "" : value;
+	}
+
+	private static String emptyToNull(String value) {
+		return value.isEmpty() ? null : value;
+	}
 
 }
@@ -0,0 +1,194 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.ServerRequest.HttpFailure;
+
+/**
+ * Circuit breaker for the token refresh calls to a keycloak realm. After a
+ * number of consecutive transient failures (server errors, rate limiting,
+ * timeouts, refused connections) the breaker opens and refreshes fail fast
+ * with a {@link OpenException}, so sessions can continue on their current
+ * token instead of being logged out. After the open period a single probe is
+ * let through; its outcome closes or reopens the breaker.
+ *
+ * Rejections by keycloak, e.g. an <code>invalid_grant</code> for a revoked
+ * session, show that the server is up and do not trip the breaker.
+ *
+ * @author dev.lauer@elnarion.de
+ *
+ */
+public final class KeycloakCircuitBreaker {
+
+	private static final Logger LOGGER = Logger.getLogger(KeycloakCircuitBreaker.class.getName());
+
+	private static final String PROPERTY_PREFIX = KeycloakCircuitBreaker.class.getName();
+
+	/**
+	 * Number of consecutive transient failures which open the breaker.
+	 */
+	static final int FAILURE_THRESHOLD = Math.max(1, Integer.getInteger(PROPERTY_PREFIX + ".failureThreshold", 5));
+
+	/**
+	 * Seconds the breaker stays open before a probe is let through.
+	 */
+	static final int OPEN_SECONDS = Math.max(1, Integer.getInteger(PROPERTY_PREFIX + ".openSeconds", 30));
+
+	private static final ConcurrentMap<String, KeycloakCircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+	/**
+	 * States of the breaker.
+	 */
+	public enum State {
+		/** calls pass */
+		CLOSED,
+		/** calls fail fast */
+		OPEN,
+		/** a single probe call is in flight */
+		HALF_OPEN
+	}
+
+	private final String server;
+
+	private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+	private volatile long openUntil;
+
+	private KeycloakCircuitBreaker(String server) {
+		this.server = server;
+	}
+
+	/**
+	 * Returns the breaker of the realm of the given deployment.
+	 *
+	 * @param deployment
+	 *            the {@link KeycloakDeployment}
+	 * @return {@link KeycloakCircuitBreaker}
+	 */
+	static KeycloakCircuitBreaker forDeployment(KeycloakDeployment deployment) {
+		// the token url would trigger the discovery, which is what the breaker has
+		// to protect
+		String server = deployment.getAuthServerBaseUrl() + "/realms/" + deployment.getRealm();
+		KeycloakCircuitBreaker breaker = BREAKERS.get(server);
+		if (breaker == null) {
+			KeycloakCircuitBreaker created = new KeycloakCircuitBreaker(server);
+			breaker = BREAKERS.putIfAbsent(server, created);
+			if (breaker == null) {
+				breaker = created;
+			}
+		}
+		return breaker;
+	}
+
+	/**
+	 * Checks whether a call may be sent.
+	 *
+	 * @throws OpenException
+	 *             if the breaker is open or a probe is already in flight
+	 */
+	void acquire() throws OpenException {
+		acquire(System.currentTimeMillis());
+	}
+
+	/**
+	 * Checks whether a call may be sent at the given time.
+	 *
+	 * @param now
+	 *            the time to check in epoch milliseconds
+	 * @throws OpenException
+	 *             if the breaker is open or a probe is already in flight
+	 */
+	void acquire(long now) throws OpenException {
+		State current = state.get();
+		if (current == State.CLOSED) {
+			return;
+		}
+		if (current == State.OPEN && now >= openUntil
+				&& state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+			LOGGER.log(Level.INFO, "Probing keycloak at {0}", server);
+			return;
+		}
+		throw new OpenException(server);
+	}
+
+	/**
+	 * Records a call which reached keycloak, including rejections.
+	 */
+	void onSuccess() {
+		consecutiveFailures.set(0);
+		if (state.getAndSet(State.CLOSED) != State.CLOSED) {
+			LOGGER.log(Level.INFO, "Keycloak at {0} is reachable again, circuit breaker closed", server);
+		}
+	}
+
+	/**
+	 * Records a transient failure.
+	 */
+	void onFailure() {
+		int failures = consecutiveFailures.incrementAndGet();
+		State current = state.get();
+		if (current == State.HALF_OPEN || (current == State.CLOSED && failures >= FAILURE_THRESHOLD)) {
+			openUntil = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(OPEN_SECONDS);
+			if (state.compareAndSet(current, State.OPEN)) {
+				LOGGER.log(Level.WARNING, "Keycloak at {0} failed {1} times in a row, circuit breaker opened for {2} seconds",
+						new Object[] { server, failures, OPEN_SECONDS });
+			}
+		}
+	}
+
+	/**
+	 * Returns the current state.
+	 *
+	 * @return {@link State}
+	 */
+	public State getState() {
+		return state.get();
+	}
+
+	/**
+	 * Returns whether the given failure is caused by an unavailable or overloaded
+	 * keycloak rather than by a rejected token.
+	 *
+	 * @param failure
+	 *            the {@link HttpFailure}
+	 * @return true for server errors and rate limiting
+	 */
+	static boolean isTransient(HttpFailure failure) {
+		return failure.getStatus() >= 500 || failure.getStatus() == 429;
+	}
+
+	/**
+	 * Returns whether any keycloak server is currently considered unavailable.
+	 *
+	 * @return true if a breaker is not closed
+	 */
+	public static boolean isAnyOpen() {
+		for (KeycloakCircuitBreaker breaker : BREAKERS.values()) {
+			if (breaker.getState() != State.CLOSED) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Thrown instead of calling keycloak while the breaker is open.
+	 */
+	public static final class OpenException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		OpenException(String server) {
+			super("Circuit breaker for keycloak at " + server + " is open");
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+
+import org.keycloak.representations.adapters.config.AdapterConfig;
+import org.keycloak.util.JsonSerialization;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+
+/**
+ * Maps requests for a host name or a path prefix to a separate keycloak
+ * client or realm, for Jenkins instances served under several host names.
+ *
+ * @author dev.lauer@elnarion.de
+ *
+ */
+public class KeycloakDeploymentMapping extends AbstractDescribableImpl<KeycloakDeploymentMapping> {
+
+	private final String keycloakJson;
+	private String host = "";
+	private String pathPrefix = "";
+
+	/**
+	 * Constructor
+	 *
+	 * @param keycloakJson
+	 *            the keycloak json configuration used for matching requests
+	 */
+	@DataBoundConstructor
+	public KeycloakDeploymentMapping(String keycloakJson) {
+		this.keycloakJson = keycloakJson;
+	}
+
+	/**
+	 * Returns the keycloak configuration
+	 *
+	 * @return {@link String} the configuration string
+	 */
+	public String getKeycloakJson() {
+		return keycloakJson;
+	}
+
+	/**
+	 * Returns the host name this mapping applies to.
+	 *
+	 * @return {@link String} the host name, empty if the mapping is selected by
+	 *         path prefix
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * Sets the host name this mapping applies to.
+	 *
+	 * @param host
+	 *            {@link String} the host name as sent by the browser, without port
+	 */
+	@DataBoundSetter
+	public void setHost(String host) {
+		this.host = host == null ? "" : host.trim();
+	}
+
+	/**
+	 * Returns the path prefix this mapping applies to.
+	 *
+	 * @return {@link String} the first path segment below the Jenkins context
+	 *         path, empty if the mapping is selected by host name
+	 */
+	public String getPathPrefix() {
+		return pathPrefix;
+	}
+
+	/**
+	 * Sets the path prefix this mapping applies to.
+	 *
+	 * @param pathPrefix
+	 *            {@link String} the first path segment below the Jenkins context
+	 *            path, e.g. <code>team-a</code>
+	 */
+	@DataBoundSetter
+	public void setPathPrefix(String pathPrefix) {
+		String prefix = pathPrefix == null ? "" : pathPrefix.trim();
+		while (prefix.startsWith("/")) {
+			prefix = prefix.substring(1);
+		}
+		while (prefix.endsWith("/")) {
+			prefix = prefix.substring(0, prefix.length() - 1);
+		}
+		this.pathPrefix = prefix;
+	}
+
+	/**
+	 * Descriptor definition for Jenkins
+	 *
+	 * @author dev.lauer@elnarion.de
+	 *
+	 */
+	@Extension
+	public static final class DescriptorImpl extends Descriptor<KeycloakDeploymentMapping> {
+		@Override
+		public String getDisplayName() {
+			return "Keycloak deployment mapping";
+		}
+
+		/**
+		 * Validate keycloakJson
+		 *
+		 * @param value String the form field value to validate
+		 * @return {@link FormValidation} the validation result
+		 * @throws ServletException
+		 */
+		public FormValidation doCheckKeycloakJson(@QueryParameter String value) throws ServletException {
+			try {
+				if (value != null && !value.isEmpty()) {
+					JsonSerialization.readValue(value, AdapterConfig.class);
+				}
+			} catch (IOException ex) {
+				return FormValidation.error("Invalid adapter config");
+			}
+			return FormValidation.ok();
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.KeycloakDeploymentBuilder;
+import org.keycloak.adapters.rotation.PublicKeyLocator;
+import org.keycloak.representations.adapters.config.AdapterConfig;
+import org.keycloak.util.JsonSerialization;
+
+/**
+ * Immutable set of prebuilt {@link KeycloakDeployment} instances: the default
+ * deployment of the realm and one deployment per
+ * {@link KeycloakDeploymentMapping}. Requests are resolved by host name or by
+ * the first path segment with a single map lookup each.
+ *
+ * @author dev.lauer@elnarion.de
+ *
+ */
+final class KeycloakDeploymentRegistry {
+
+	/**
+	 * The key of the default deployment.
+	 */
+	static final String DEFAULT_KEY = "";
+
+	private static final String HOST_KEY_PREFIX = "host:";
+
+	private static final String PATH_KEY_PREFIX = "path:";
+
+	private final KeycloakDeployment defaultDeployment;
+
+	private final Map<String, KeycloakDeployment> byKey;
+
+	private final Map<String, String> hostKeys;
+
+	private final Map<String, String> pathKeys;
+
+	private final List<RealmKeyCache> keyCaches;
+
+	private KeycloakDeploymentRegistry(KeycloakDeployment defaultDeployment, Map<String, KeycloakDeployment> byKey,
+			Map<String, String> hostKeys, Map<String, String> pathKeys, List<RealmKeyCache> keyCaches) {
+		this.defaultDeployment = defaultDeployment;
+		this.byKey = byKey;
+		this.hostKeys = hostKeys;
+		this.pathKeys = pathKeys;
+		this.keyCaches = keyCaches;
+	}
+
+	/**
+	 * Builds the deployments of the given configuration.
+	 *
+	 * @param keycloakJson
+	 *            the default keycloak json configuration
+	 * @param mappings
+	 *            the additional {@link KeycloakDeploymentMapping}s
+	 * @param transport
+	 *            the {@link KeycloakHttpTransport} settings of all deployments
+	 * @return {@link KeycloakDeploymentRegistry}
+	 * @throws IOException
+	 *             if a configuration can not be parsed
+	 */
+	static KeycloakDeploymentRegistry build(String keycloakJson, List<KeycloakDeploymentMapping> mappings,
+			KeycloakHttpTransport transport) throws IOException {
+		List<RealmKeyCache> keyCaches = new ArrayList<>();
+		KeycloakDeployment defaultDeployment = buildDeployment(keycloakJson, transport, keyCaches);
+		Map<String, KeycloakDeployment> byKey = new HashMap<>();
+		Map<String, String> hostKeys = new HashMap<>();
+		Map<String, String> pathKeys = new HashMap<>();
+		byKey.put(DEFAULT_KEY, defaultDeployment);
+		for (KeycloakDeploymentMapping mapping : mappings) {
+			String key;
+			if (!mapping.getHost().isEmpty()) {
+				String host = mapping.getHost().toLowerCase(Locale.ENGLISH);
+				key = HOST_KEY_PREFIX + host;
+				hostKeys.put(host, key);
+			} else if (!mapping.getPathPrefix().isEmpty()) {
+				key = PATH_KEY_PREFIX + mapping.getPathPrefix();
+				pathKeys.put(mapping.getPathPrefix(), key);
+			} else {
+				continue;
+			}
+			byKey.put(key, buildDeployment(mapping.getKeycloakJson(), transport, keyCaches));
+		}
+		return new KeycloakDeploymentRegistry(defaultDeployment, Collections.unmodifiableMap(byKey),
+				Collections.unmodifiableMap(hostKeys), Collections.unmodifiableMap(pathKeys),
+				Collections.unmodifiableList(keyCaches));
+	}
+
+	private static KeycloakDeployment buildDeployment(String keycloakJson, KeycloakHttpTransport transport,
+			List<RealmKeyCache> keyCaches) throws IOException {
+		AdapterConfig adapterConfig = JsonSerialization.readValue(keycloakJson, AdapterConfig.class);
+		transport.apply(adapterConfig);
+		KeycloakDeployment deployment = KeycloakDeploymentBuilder.build(adapterConfig);
+		transport.configure(deployment, adapterConfig);
+		// a configured realm public key is used as is, otherwise the keys are cached
+		// and prefetched from the JWKS endpoint once the registry is started
+		if (adapterConfig.getRealmKey() == null) {
+			RealmKeyCache keyCache = new RealmKeyCache();
+			deployment.setPublicKeyLocator(keyCache);
+			keyCaches.add(keyCache);
+		}
+		return deployment;
+	}
+
+	/**
+	 * Returns the key of the deployment responsible for the given request.
+	 *
+	 * @param request
+	 *            the {@link HttpServletRequest}
+	 * @return {@link String} the deployment key
+	 */
+	String resolveKey(HttpServletRequest request) {
+		String key = resolveHostKey(request);
+		if (key == null && !pathKeys.isEmpty()) {
+			key = pathKeys.get(firstPathSegment(request.getRequestURI(), request.getContextPath()));
+		}
+		return key == null ? DEFAULT_KEY : key;
+	}
+
+	/**
+	 * Returns the key of the deployment responsible for a login started from the
+	 * given page. The login URLs are below the root of Jenkins, so the path prefix
+	 * is taken from the page the user came from.
+	 *
+	 * @param request
+	 *            the {@link HttpServletRequest} starting the login
+	 * @param referer
+	 *            the URL of the page the login was started from, may be null
+	 * @return {@link String} the deployment key
+	 */
+	String resolveLoginKey(HttpServletRequest request, String referer) {
+		String key = resolveHostKey(request);
+		if (key == null && !pathKeys.isEmpty() && referer != null) {
+			key = pathKeys.get(firstPathSegment(pathOf(referer), request.getContextPath()));
+		}
+		return key == null ? DEFAULT_KEY : key;
+	}
+
+	private String resolveHostKey(HttpServletRequest request) {
+		if (hostKeys.isEmpty()) {
+			return null;
+		}
+		String host = request.getServerName();
+		return host == null ? null : hostKeys.get(host.toLowerCase(Locale.ENGLISH));
+	}
+
+	private static String pathOf(String url) {
+		try {
+			return new URI(url).getRawPath();
+		} catch (URISyntaxException e) {
+			return null;
+		}
+	}
+
+	private static String firstPathSegment(String uri, String contextPath) {
+		if (uri == null) {
+			return "";
+		}
+		int start = contextPath != null && uri.startsWith(contextPath) ? contextPath.length() : 0;
+		if (start < uri.length() && uri.charAt(start) == '/') {
+			start++;
+		}
+		int end = uri.indexOf('/', start);
+		return uri.substring(start, end < 0 ? uri.length() : end);
+	}
+
+	/**
+	 * Returns the deployment with the given key.
+	 *
+	 * @param key
+	 *            the deployment key, null for the default deployment
+	 * @return {@link KeycloakDeployment} the deployment, the default deployment if
+	 *         the key is unknown
+	 */
+	KeycloakDeployment get(String key) {
+		if (key == null) {
+			return defaultDeployment;
+		}
+		KeycloakDeployment deployment = byKey.get(key);
+		return deployment == null ? defaultDeployment : deployment;
+	}
+
+	/**
+	 * Returns the default deployment.
+	 *
+	 * @return {@link KeycloakDeployment}
+	 */
+	KeycloakDeployment getDefault() {
+		return defaultDeployment;
+	}
+
+	/**
+	 * Returns all deployments, the default one and those of the mappings.
+	 *
+	 * @return collection of {@link KeycloakDeployment}
+	 */
+	Collection<KeycloakDeployment> getAll() {
+		return byKey.values();
+	}
+
+	/**
+	 * Returns the signing key caches of all deployments.
+	 *
+	 * @return list of {@link RealmKeyCache}
+	 */
+	List<RealmKeyCache> getKeyCaches() {
+		return keyCaches;
+	}
+
+	/**
+	 * Starts the background work of all deployments, e.g. the prefetch of the
+	 * realm keys. Called once the registry is published to the realm.
+	 */
+	void start() {
+		for (KeycloakDeployment deployment : byKey.values()) {
+			PublicKeyLocator locator = deployment.getPublicKeyLocator();
+			if (locator instanceof RealmKeyCache) {
+				((RealmKeyCache) locator).start(deployment);
+			}
+		}
+	}
+
+	/**
+	 * Stops the background work of all deployments.
+	 */
+	void stop() {
+		for (RealmKeyCache keyCache : keyCaches) {
+			keyCache.stop();
+		}
+	}
+}
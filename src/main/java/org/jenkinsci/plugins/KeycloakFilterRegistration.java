@@ -0,0 +1,111 @@
+package org.jenkinsci.plugins;
+
+import java.lang.ref.WeakReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.util.PluginServletFilter;
+import jenkins.model.Jenkins;
+
+/**
+ * Keeps the {@link RefreshFilter} and the {@link BearerTokenFilter} registered
+ * exactly once while a {@link KeycloakSecurityRealm} is the active security
+ * realm and removes them when another realm becomes active.
+ *
+ * There is a single instance of each filter for the JVM. The registration is
+ * checked after the configuration was loaded, when the realm is applied, after
+ * each save of the Jenkins configuration and on each login, which is a volatile
+ * read when nothing changed. A realm replaced without a save removes the
+ * filters on the next request.
+ *
+ * @author dev.lauer@elnarion.de
+ *
+ */
+public final class KeycloakFilterRegistration {
+
+	private static final Logger LOGGER = Logger.getLogger(KeycloakFilterRegistration.class.getName());
+
+	private static final RefreshFilter REFRESH_FILTER = new RefreshFilter();
+
+	private static final BearerTokenFilter BEARER_TOKEN_FILTER = new BearerTokenFilter();
+
+	// the Jenkins instance the filters are registered with, a restart within the
+	// same JVM brings up a new instance with an empty filter list
+	private static volatile WeakReference<Jenkins> registeredWith = new WeakReference<>(null);
+
+	private KeycloakFilterRegistration() {
+	}
+
+	/**
+	 * Registers the filters after the configuration was loaded, the realm
+	 * constructor is bypassed when the realm is read from disk.
+	 */
+	@Initializer(after = InitMilestone.JOBS_LOADED)
+	public static void init() {
+		update();
+	}
+
+	/**
+	 * Registers or removes the filters depending on the active security realm.
+	 */
+	static void update() {
+		Jenkins j = Jenkins.getInstanceOrNull();
+		if (j == null) {
+			return;
+		}
+		boolean active = j.getSecurityRealm() instanceof KeycloakSecurityRealm;
+		if (active == (registeredWith.get() == j)) {
+			return;
+		}
+		synchronized (KeycloakFilterRegistration.class) {
+			boolean registered = registeredWith.get() == j;
+			try {
+				if (active && !registered) {
+					LOGGER.log(Level.INFO, "Register keycloak filters");
+					PluginServletFilter.addFilter(REFRESH_FILTER);
+					PluginServletFilter.addFilter(BEARER_TOKEN_FILTER);
+					registeredWith = new WeakReference<>(j);
+				} else if (!active && registered) {
+					LOGGER.log(Level.INFO, "Remove keycloak filters");
+					PluginServletFilter.removeFilter(REFRESH_FILTER);
+					PluginServletFilter.removeFilter(BEARER_TOKEN_FILTER);
+					registeredWith = new WeakReference<>(null);
+				}
+			} catch (ServletException e) {
+				LOGGER.log(Level.SEVERE, "update", e);
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the filters are registered with the running Jenkins.
+	 *
+	 * @return boolean
+	 */
+	static boolean isRegistered() {
+		Jenkins j = Jenkins.getInstanceOrNull();
+		return j != null && registeredWith.get() == j;
+	}
+
+	/**
+	 * Follows security realm changes, which are saved with the Jenkins
+	 * configuration.
+	 */
+	@Extension
+	public static class RealmChangeListener extends SaveableListener {
+		@Override
+		public void onChange(Saveable o, XmlFile file) {
+			if (o instanceof Jenkins) {
+				update();
+			}
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package org.jenkinsci.plugins;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.params.ClientPNames;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.representations.adapters.config.AdapterConfig;
+
+/**
+ * Settings of the HTTP client used for the calls to keycloak: the size of the
+ * connection pool and the deadlines for connecting, for waiting on a pooled
+ * connection and for reading a response. Settings which are not set keep the
+ * value of the keycloak JSON, timeouts missing there as well get a default.
+ *
+ * Calls are counted per deployment, and a warning is logged when more calls
+ * are in flight than the pool has connections, so exhausted pools show up in
+ * the log instead of as slow logins.
+ *
+ * @author dev.lauer@elnarion.de
+ *
+ */
+final class KeycloakHttpTransport {
+
+	private static final Logger LOGGER = Logger.getLogger(KeycloakHttpTransport.class.getName());
+
+	/**
+	 * Default number of pooled connections per deployment.
+	 */
+	static final int DEFAULT_CONNECTION_POOL_SIZE = 20;
+
+	/**
+	 * Default seconds to wait for a connection, either a new or a pooled one.
+	 */
+	static final int DEFAULT_CONNECT_TIMEOUT = 10;
+
+	/**
+	 * Default seconds to wait for data of a response.
+	 */
+	static final int DEFAULT_READ_TIMEOUT = 30;
+
+	private static final long WARN_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	private static final Map<KeycloakDeployment, Usage> USAGES = Collections
+			.synchronizedMap(new WeakHashMap<KeycloakDeployment, Usage>());
+
+	private final int connectionPoolSize;
+
+	private final int connectTimeout;
+
+	private final int readTimeout;
+
+	/**
+	 * Constructor
+	 *
+	 * @param connectionPoolSize
+	 *            the number of pooled connections per deployment, 0 if not set
+	 * @param connectTimeout
+	 *            seconds to wait for a connection, 0 if not set
+	 * @param readTimeout
+	 *            seconds to wait for data of a response, 0 if not set
+	 */
+	KeycloakHttpTransport(int connectionPoolSize, int connectTimeout, int readTimeout) {
+		this.connectionPoolSize = connectionPoolSize;
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Applies the pool size and the timeouts which are set to the adapter
+	 * configuration before the deployment is built.
+	 *
+	 * @param adapterConfig
+	 *            the {@link AdapterConfig}
+	 */
+	void apply(AdapterConfig adapterConfig) {
+		if (connectionPoolSize > 0) {
+			adapterConfig.setConnectionPoolSize(connectionPoolSize);
+		} else if (adapterConfig.getConnectionPoolSize() <= 0) {
+			adapterConfig.setConnectionPoolSize(DEFAULT_CONNECTION_POOL_SIZE);
+		}
+		adapterConfig.setConnectionTimeout(
+				timeoutMillis(connectTimeout, adapterConfig.getConnectionTimeout(), DEFAULT_CONNECT_TIMEOUT));
+		adapterConfig.setSocketTimeout(
+				timeoutMillis(readTimeout, adapterConfig.getSocketTimeout(), DEFAULT_READ_TIMEOUT));
+	}
+
+	// without any timeout the adapter would wait forever
+	private static long timeoutMillis(int seconds, long configuredMillis, int defaultSeconds) {
+		if (seconds > 0) {
+			return TimeUnit.SECONDS.toMillis(seconds);
+		}
+		return configuredMillis > 0 ? configuredMillis : TimeUnit.SECONDS.toMillis(defaultSeconds);
+	}
+
+	/**
+	 * Bounds the wait for a pooled connection of the built deployment and
+	 * registers it for the in flight tracking.
+	 *
+	 * @param deployment
+	 *            the built {@link KeycloakDeployment}
+	 * @param adapterConfig
+	 *            the {@link AdapterConfig} the deployment was built from
+	 */
+	@SuppressWarnings("deprecation")
+	void configure(KeycloakDeployment deployment, AdapterConfig adapterConfig) {
+		HttpClient client = deployment.getClient();
+		if (client != null) {
+			// without this deadline a request waits forever for a connection of an
+			// exhausted pool
+			client.getParams().setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT,
+					adapterConfig.getConnectionTimeout());
+		}
+		USAGES.put(deployment, new Usage(adapterConfig.getConnectionPoolSize()));
+	}
+
+	/**
+	 * Marks the start of a call to keycloak.
+	 *
+	 * @param deployment
+	 *            the {@link KeycloakDeployment} used for the call
+	 * @return {@link Call} to close when the call is finished
+	 */
+	static Call begin(KeycloakDeployment deployment) {
+		Usage usage = USAGES.get(deployment);
+		if (usage == null) {
+			return Call.UNTRACKED;
+		}
+		int inFlight = usage.inFlight.incrementAndGet();
+		if (inFlight > usage.connectionPoolSize) {
+			usage.saturated(inFlight, deployment);
+		}
+		return new Call(usage);
+	}
+
+	/**
+	 * Returns the number of calls to keycloak currently in flight for the given
+	 * deployment.
+	 *
+	 * @param deployment
+	 *            the {@link KeycloakDeployment}
+	 * @return int
+	 */
+	static int getInFlightCount(KeycloakDeployment deployment) {
+		Usage usage = USAGES.get(deployment);
+		return usage == null ? 0 : usage.inFlight.get();
+	}
+
+	/**
+	 * Returns the number of calls which had to wait for a free connection.
+	 *
+	 * @param deployment
+	 *            the {@link KeycloakDeployment}
+	 * @return long
+	 */
+	static long getSaturatedCount(KeycloakDeployment deployment) {
+		Usage usage = USAGES.get(deployment);
+		return usage == null ? 0 : usage.saturated.get();
+	}
+
+	/**
+	 * A running call to keycloak.
+	 */
+	static final class Call implements AutoCloseable {
+		private static final Call UNTRACKED = new Call(null);
+
+		private final Usage usage;
+
+		private Call(Usage usage) {
+			this.usage = usage;
+		}
+
+		@Override
+		public void close() {
+			if (usage != null) {
+				usage.inFlight.decrementAndGet();
+			}
+		}
+	}
+
+	private static final class Usage {
+		private final int connectionPoolSize;
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private final AtomicLong saturated = new AtomicLong();
+		private final AtomicLong lastWarning = new AtomicLong();
+
+		private Usage(int connectionPoolSize) {
+			this.connectionPoolSize = connectionPoolSize;
+		}
+
+		private void saturated(int inFlight, KeycloakDeployment deployment) {
+			saturated.incrementAndGet();
+			long now = System.currentTimeMillis();
+			long last = lastWarning.get();
+			if (now - last > WARN_INTERVAL_MILLIS && lastWarning.compareAndSet(last, now)) {
+				LOGGER.log(Level.WARNING,
+						"{0} calls to keycloak realm {1} are in flight, but the connection pool has only {2} connections",
+						new Object[] { inFlight, deployment.getRealm(), connectionPoolSize });
+			}
+		}
+	}
+}
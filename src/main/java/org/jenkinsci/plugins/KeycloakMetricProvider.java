@@ -0,0 +1,61 @@
+package org.jenkinsci.plugins;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+
+import hudson.Extension;
+import jenkins.metrics.api.MetricProvider;
+
+/**
+ * Publishes the {@link KeycloakMetrics} through the metrics plugin, if it is
+ * installed. Latencies are reported in microseconds.
+ *
+ * @author dev.lauer@elnarion.de
+ *
+ */
+@Extension(optional = true)
+public class KeycloakMetricProvider extends MetricProvider {
+
+	private static final String PREFIX = "keycloak";
+
+	private final MetricSet metricSet = createMetricSet();
+
+	@Override
+	public MetricSet getMetricSet() {
+		return metricSet;
+	}
+
+	private static MetricSet createMetricSet() {
+		final KeycloakMetrics metrics = KeycloakMetrics.get();
+		final Map<String, Metric> gauges = new HashMap<>();
+		for (KeycloakMetrics.Operation operation : KeycloakMetrics.Operation.values()) {
+			final LatencyHistogram histogram = metrics.getLatency(operation);
+			String name = KeycloakMetrics.name(operation);
+			gauges.put(MetricRegistry.name(PREFIX, name, "count"), (Gauge<Long>) histogram::getCount);
+			gauges.put(MetricRegistry.name(PREFIX, name, "mean"),
+					(Gauge<Long>) () -> TimeUnit.NANOSECONDS.toMicros(histogram.getMean()));
+			gauges.put(MetricRegistry.name(PREFIX, name, "p50"),
+					(Gauge<Long>) () -> TimeUnit.NANOSECONDS.toMicros(histogram.getPercentile(0.5)));
+			gauges.put(MetricRegistry.name(PREFIX, name, "p99"),
+					(Gauge<Long>) () -> TimeUnit.NANOSECONDS.toMicros(histogram.getPercentile(0.99)));
+			gauges.put(MetricRegistry.name(PREFIX, name, "max"),
+					(Gauge<Long>) () -> TimeUnit.NANOSECONDS.toMicros(histogram.getMax()));
+		}
+		for (final KeycloakMetrics.RefreshOutcome outcome : KeycloakMetrics.RefreshOutcome.values()) {
+			gauges.put(MetricRegistry.name(PREFIX, "refresh", KeycloakMetrics.name(outcome)),
+					(Gauge<Long>) () -> metrics.getRefreshCount(outcome));
+		}
+		for (final KeycloakMetrics.LogoutReason reason : KeycloakMetrics.LogoutReason.values()) {
+			gauges.put(MetricRegistry.name(PREFIX, "forcedLogout", KeycloakMetrics.name(reason)),
+					(Gauge<Long>) () -> metrics.getForcedLogoutCount(reason));
+		}
+		gauges.put(MetricRegistry.name(PREFIX, "login", "failed"), (Gauge<Long>) metrics::getFailedLoginCount);
+		return () -> gauges;
+	}
+}
@@ -0,0 +1,196 @@
+package org.jenkinsci.plugins;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.sf.json.JSONObject;
+
+/**
+ * Counters and latency histograms of the plugin: login, logout, token
+ * refreshes, the overhead of the {@link RefreshFilter} and forced logouts.
+ * All values are recorded without locks. They are exposed as JSON on
+ * <code>securityRealm/metrics</code> and through the metrics plugin, if it is
+ * installed.
+ *
+ * @author dev.lauer@elnarion.de
+ *
+ */
+public final class KeycloakMetrics {
+
+	/**
+	 * Timed operations.
+	 */
+	public enum Operation {
+		/** {@link KeycloakSecurityRealm#doCommenceLogin} */
+		COMMENCE_LOGIN,
+		/** the code to token exchange and user update of a login */
+		FINISH_LOGIN,
+		/** {@link KeycloakSecurityRealm#doLogout} */
+		LOGOUT,
+		/** the token refresh call to keycloak */
+		REFRESH,
+		/** the time spent in the {@link RefreshFilter}, without the rest of the request */
+		FILTER
+	}
+
+	/**
+	 * Outcomes of a token refresh call.
+	 */
+	public enum RefreshOutcome {
+		/** keycloak issued new tokens */
+		SUCCESS,
+		/** keycloak rejected the refresh */
+		HTTP_FAILURE,
+		/** keycloak could not be reached */
+		IO_ERROR,
+		/** not sent as the circuit breaker is open */
+		CIRCUIT_OPEN,
+		/** not sent as the refresh rate limit was reached */
+		RATE_LIMITED
+	}
+
+	/**
+	 * Reasons for redirecting a session to the logout.
+	 */
+	public enum LogoutReason {
+		/** the refresh token expired */
+		REFRESH_EXPIRED,
+		/** keycloak rejected the refresh */
+		REFRESH_FAILED,
+		/** keycloak was unavailable for longer than the staleness bound */
+		KEYCLOAK_UNAVAILABLE
+	}
+
+	private static final KeycloakMetrics INSTANCE = new KeycloakMetrics();
+
+	// filled once, only the values change afterwards
+	private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+
+	private final Map<RefreshOutcome, LongAdder> refreshOutcomes = new EnumMap<>(RefreshOutcome.class);
+
+	private final Map<LogoutReason, LongAdder> forcedLogouts = new EnumMap<>(LogoutReason.class);
+
+	private final LongAdder failedLogins = new LongAdder();
+
+	private KeycloakMetrics() {
+		for (Operation operation : Operation.values()) {
+			latencies.put(operation, new LatencyHistogram());
+		}
+		for (RefreshOutcome outcome : RefreshOutcome.values()) {
+			refreshOutcomes.put(outcome, new LongAdder());
+		}
+		for (LogoutReason reason : LogoutReason.values()) {
+			forcedLogouts.put(reason, new LongAdder());
+		}
+	}
+
+	/**
+	 * Returns the JVM wide metrics instance.
+	 *
+	 * @return {@link KeycloakMetrics}
+	 */
+	public static KeycloakMetrics get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Records the duration of an operation.
+	 *
+	 * @param operation the {@link Operation}
+	 * @param startNanos the start as returned by {@link System#nanoTime()}
+	 */
+	void record(Operation operation, long startNanos) {
+		latencies.get(operation).record(System.nanoTime() - startNanos);
+	}
+
+	void refreshed(RefreshOutcome outcome) {
+		refreshOutcomes.get(outcome).increment();
+	}
+
+	void forcedLogout(LogoutReason reason) {
+		forcedLogouts.get(reason).increment();
+	}
+
+	void loginFailed() {
+		failedLogins.increment();
+	}
+
+	LatencyHistogram getLatency(Operation operation) {
+		return latencies.get(operation);
+	}
+
+	/**
+	 * Returns the number of refresh calls with the given outcome.
+	 *
+	 * @param outcome the {@link RefreshOutcome}
+	 * @return long
+	 */
+	public long getRefreshCount(RefreshOutcome outcome) {
+		return refreshOutcomes.get(outcome).sum();
+	}
+
+	/**
+	 * Returns the number of sessions redirected to the logout for the given
+	 * reason.
+	 *
+	 * @param reason the {@link LogoutReason}
+	 * @return long
+	 */
+	public long getForcedLogoutCount(LogoutReason reason) {
+		return forcedLogouts.get(reason).sum();
+	}
+
+	/**
+	 * Returns the number of logins which did not result in an authentication.
+	 *
+	 * @return long
+	 */
+	public long getFailedLoginCount() {
+		return failedLogins.sum();
+	}
+
+	/**
+	 * Returns all metrics as JSON, latencies in microseconds.
+	 *
+	 * @return {@link JSONObject}
+	 */
+	public JSONObject toJSON() {
+		JSONObject json = new JSONObject();
+		JSONObject latencyJson = new JSONObject();
+		for (Map.Entry<Operation, LatencyHistogram> entry : latencies.entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			JSONObject h = new JSONObject();
+			h.put("count", histogram.getCount());
+			h.put("mean", micros(histogram.getMean()));
+			h.put("p50", micros(histogram.getPercentile(0.5)));
+			h.put("p90", micros(histogram.getPercentile(0.9)));
+			h.put("p99", micros(histogram.getPercentile(0.99)));
+			h.put("max", micros(histogram.getMax()));
+			latencyJson.put(name(entry.getKey()), h);
+		}
+		json.put("latencies", latencyJson);
+		JSONObject refreshJson = new JSONObject();
+		for (Map.Entry<RefreshOutcome, LongAdder> entry : refreshOutcomes.entrySet()) {
+			refreshJson.put(name(entry.getKey()), entry.getValue().sum());
+		}
+		json.put("refreshes", refreshJson);
+		JSONObject logoutJson = new JSONObject();
+		for (Map.Entry<LogoutReason, LongAdder> entry : forcedLogouts.entrySet()) {
+			logoutJson.put(name(entry.getKey()), entry.getValue().sum());
+		}
+		json.put("forcedLogouts", logoutJson);
+		json.put("failedLogins", failedLogins.sum());
+		return json;
+	}
+
+	static String name(Enum<?> value) {
+		return value.name().toLowerCase(Locale.ENGLISH);
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+}
@@ -28,12 +28,19 @@ package org.jenkinsci.plugins;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.function.BooleanSupplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.security.cert.X509Certificate;
+import javax.servlet.Filter;
+import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 
@@ -44,22 +51,30 @@ import org.acegisecurity.AuthenticationException;
 import org.acegisecurity.AuthenticationManager;
 import org.acegisecurity.BadCredentialsException;
 import org.acegisecurity.context.SecurityContextHolder;
+import org.acegisecurity.userdetails.UserDetails;
+import org.acegisecurity.userdetails.UsernameNotFoundException;
 import org.keycloak.KeycloakSecurityContext;
 import org.keycloak.OAuth2Constants;
+import org.keycloak.TokenVerifier;
 import org.keycloak.adapters.AdapterDeploymentContext;
 import org.keycloak.adapters.KeycloakDeployment;
-import org.keycloak.adapters.KeycloakDeploymentBuilder;
 import org.keycloak.adapters.OIDCHttpFacade;
 import org.keycloak.adapters.ServerRequest;
 import org.keycloak.adapters.ServerRequest.HttpFailure;
 import org.keycloak.adapters.rotation.AdapterTokenVerifier;
+import org.keycloak.adapters.rotation.PublicKeyLocator;
 import org.keycloak.adapters.spi.AuthenticationError;
 import org.keycloak.adapters.spi.LogoutError;
+import org.keycloak.common.VerificationException;
 import org.keycloak.common.util.KeycloakUriBuilder;
+import org.keycloak.enums.RelativeUrlsUsed;
 import org.keycloak.jose.jws.JWSInput;
+import org.keycloak.jose.jws.JWSInputException;
 import org.keycloak.representations.AccessToken;
 import org.keycloak.representations.AccessTokenResponse;
 import org.keycloak.representations.IDToken;
+import org.keycloak.representations.JsonWebToken;
+import org.keycloak.representations.LogoutToken;
 import org.keycloak.representations.adapters.config.AdapterConfig;
 import org.keycloak.util.JsonSerialization;
 import org.keycloak.util.TokenUtil;
@@ -74,13 +89,16 @@ import org.kohsuke.stapler.HttpResponses;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 
 import hudson.Extension;
 import hudson.model.Descriptor;
 import hudson.model.User;
+import hudson.security.GroupDetails;
 import hudson.security.SecurityRealm;
-import hudson.tasks.Mailer;
+import hudson.security.UserMayOrMayNotExistException;
 import hudson.util.FormValidation;
+import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 
 /**
@@ -108,18 +126,49 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 	 */
 	public static final String AUTH_REQUESTED = "AUTH_REQUESTED";
 
+	/**
+	 * Default seconds a session may continue on an expired access token while
+	 * keycloak is not available.
+	 */
+	static final int DEFAULT_MAX_TOKEN_STALENESS = 300;
+
+	static final int DEFAULT_MIN_REFRESH_INTERVAL = 1;
+
+	/**
+	 * Seconds the issue time of a back-channel logout token may differ from the
+	 * current time, older tokens are rejected as replays.
+	 */
+	static final int LOGOUT_TOKEN_MAX_AGE_SECONDS = Math.max(1,
+			Integer.getInteger(KeycloakSecurityRealm.class.getName() + ".logoutTokenMaxAgeSeconds", 300));
+
 	private static final Logger LOGGER = Logger.getLogger(KeycloakSecurityRealm.class.getName());
 
 	private static final String REFERER_ATTRIBUTE = KeycloakSecurityRealm.class.getName() + ".referer";
 
-	private transient KeycloakDeployment keycloakDeployment;
+	// the deployment a login was started with, the login URLs carry no path prefix
+	private static final String DEPLOYMENT_KEY_ATTRIBUTE = KeycloakSecurityRealm.class.getName() + ".deploymentKey";
+
+	private static final String BACKCHANNEL_LOGOUT_EVENT = "http://schemas.openid.net/event/backchannel-logout";
 
-	private transient RefreshFilter filter;
+	// immutable snapshot of the deployments, replaced as a whole on a config change
+	private transient volatile KeycloakDeploymentRegistry deploymentRegistry;
 
 	private String keycloakJson = "";
+	private List<KeycloakDeploymentMapping> keycloakDeploymentMappings = new ArrayList<>();
 	private String keycloakIdp = "";
 	private boolean keycloakValidate = false;
 	private boolean keycloakRespectAccessTokenTimeout = true;
+	private boolean keycloakLocalValidation = false;
+	private boolean keycloakBearerAuthentication = false;
+	private boolean keycloakTokenIntrospection = false;
+	private boolean keycloakUserLookup = false;
+	// null in configurations saved before the setting existed, 0 is a valid bound
+	private Integer keycloakMaxTokenStaleness = DEFAULT_MAX_TOKEN_STALENESS;
+	private int keycloakMinRefreshInterval = DEFAULT_MIN_REFRESH_INTERVAL;
+	// 0 keeps the value of the keycloak json
+	private int keycloakConnectionPoolSize;
+	private int keycloakConnectTimeout;
+	private int keycloakReadTimeout;
 
 	/**
 	 * Constructor
@@ -130,31 +179,6 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 	@DataBoundConstructor
 	public KeycloakSecurityRealm() throws IOException {
 		super();
-		createFilter();
-	}
-
-	/*
-	 * hudson.security.SecurityRealm.createFilter(FilterConfig) extension point is
-	 * not used to leave this kind of handling unchanged. Hence, we are sticking
-	 * with the hudson.util.PluginServletFilter.addFilter(Filter) path.
-	 */
-	synchronized void createFilter() {
-		// restarts on things like plugin upgrade bypassed the call to the
-		// constructor, so filter initialization
-		// has to be driven in-line; note, after initial bring up, the filter
-		// variable will be set after subsequent
-		// jenkins restarts, but the addFilter call needs to be made on each
-		// restart, so we check flag to see if the filter
-		// has been ran through at least once
-		if (filter == null || !filter.isInitCalled()) {
-			try {
-				LOGGER.log(Level.INFO, "Create Filter");
-				filter = new RefreshFilter();
-				hudson.util.PluginServletFilter.addFilter(filter);
-			} catch (ServletException e) {
-				LOGGER.log(Level.SEVERE, "createFilter", e);
-			}
-		}
 	}
 
 	/**
@@ -169,15 +193,28 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 	 */
 	public HttpResponse doCommenceLogin(StaplerRequest request, StaplerResponse response,
 			@Header("Referer") final String referer) throws IOException {
+		long start = System.nanoTime();
+		try {
+			return commenceLogin(request, referer);
+		} finally {
+			KeycloakMetrics.get().record(KeycloakMetrics.Operation.COMMENCE_LOGIN, start);
+		}
+	}
+
+	private HttpResponse commenceLogin(StaplerRequest request, String referer) throws IOException {
 		request.getSession().setAttribute(REFERER_ATTRIBUTE, referer);
 
+		KeycloakDeploymentRegistry registry = getDeploymentRegistry();
+		String deploymentKey = registry.resolveLoginKey(request, referer);
+		request.getSession().setAttribute(DEPLOYMENT_KEY_ATTRIBUTE, deploymentKey);
+		KeycloakDeployment deployment = registry.get(deploymentKey);
 		String scopeParam = TokenUtil.attachOIDCScope(null);
 		String redirect = redirectUrl(request);
 
 		String state = UUID.randomUUID().toString();
 
-        KeycloakUriBuilder builder = getKeycloakDeployment().getAuthUrl().clone()
-				.queryParam(OAuth2Constants.CLIENT_ID, getKeycloakDeployment().getResourceName())
+        KeycloakUriBuilder builder = deployment.getAuthUrl().clone()
+				.queryParam(OAuth2Constants.CLIENT_ID, deployment.getResourceName())
 				.queryParam(OAuth2Constants.REDIRECT_URI, redirect).queryParam(OAuth2Constants.STATE, state)
 				.queryParam(OAuth2Constants.RESPONSE_TYPE, OAuth2Constants.CODE)
 				.queryParam(OAuth2Constants.SCOPE, scopeParam);
@@ -187,7 +224,7 @@ public class KeycloakSecurityRealm extends SecurityRealm {
         }
 		String authUrl = builder.build().toString();
 		request.getSession().setAttribute(AUTH_REQUESTED, Boolean.valueOf(true));
-		createFilter();
+		KeycloakFilterRegistration.update();
 		return new HttpRedirect(authUrl);
 
 	}
@@ -207,7 +244,12 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 		return redirect;
 	}
 
-	private KeycloakDeployment resolveDeployment(KeycloakDeployment baseDeployment, HttpServletRequest request) {
+	private static KeycloakDeployment resolveDeployment(KeycloakDeployment baseDeployment,
+			HttpServletRequest request) {
+		// only deployments with a relative auth server url depend on the request url
+		if (baseDeployment.getRelativeUrls() == null || baseDeployment.getRelativeUrls() == RelativeUrlsUsed.NEVER) {
+			return baseDeployment;
+		}
 		ServletFacade facade = new ServletFacade(request);
 		return new AdapterDeploymentContext(baseDeployment).resolveDeployment(facade);
 	}
@@ -223,18 +265,38 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 	 */
 	public HttpResponse doFinishLogin(StaplerRequest request) throws IOException {
 
-		String redirect = redirectUrl(request);
+		final String redirect = redirectUrl(request);
+		final String code = request.getParameter(OAuth2Constants.CODE);
 
-		try {
-			LOGGER.log(Level.FINE, "Code" + request.getParameter(OAuth2Constants.CODE));
-			LOGGER.log(Level.FINE, "Redirect" + redirect);
+		LOGGER.log(Level.FINE, "Code {0}", code);
+		LOGGER.log(Level.FINE, "Redirect {0}", redirect);
 
-			KeycloakDeployment resolvedDeployment = resolveDeployment(getKeycloakDeployment(), request);
+		KeycloakDeploymentRegistry registry = getDeploymentRegistry();
+		String loginKey = (String) request.getSession().getAttribute(DEPLOYMENT_KEY_ATTRIBUTE);
+		final String deploymentKey = loginKey != null ? loginKey : registry.resolveKey(request);
+		final KeycloakDeployment resolvedDeployment = resolveDeployment(registry.get(deploymentKey), request);
 
-			LOGGER.log(Level.FINE, "TokenURL" + resolvedDeployment.getTokenUrl());
+		String referer = (String) request.getSession().getAttribute(REFERER_ATTRIBUTE);
+		String target = referer != null ? referer : request.getContextPath() + "/";
+		LOGGER.log(Level.FINEST, "Redirecting to {0}", target);
+		// the token exchange is done outside of the request thread if possible
+		return new LoginCompletion(claim -> finishLogin(resolvedDeployment, deploymentKey, code, redirect, claim),
+				target);
+	}
 
-			AccessTokenResponse tokenResponse = ServerRequest.invokeAccessCodeToToken(resolvedDeployment,
-					request.getParameter(OAuth2Constants.CODE), redirect, null);
+	private void finishLogin(KeycloakDeployment resolvedDeployment, String deploymentKey, String code,
+			String redirect, BooleanSupplier claim) {
+		long start = System.nanoTime();
+		boolean authenticated = false;
+		try {
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.log(Level.FINE, "TokenURL" + resolvedDeployment.getTokenUrl());
+			}
+
+			AccessTokenResponse tokenResponse;
+			try (KeycloakHttpTransport.Call call = KeycloakHttpTransport.begin(resolvedDeployment)) {
+				tokenResponse = ServerRequest.invokeAccessCodeToToken(resolvedDeployment, code, redirect, null);
+			}
 
 			String tokenString = tokenResponse.getToken();
 			String idTokenString = tokenResponse.getIdToken();
@@ -246,16 +308,23 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 
 				IDToken idToken = input.readJsonContent(IDToken.class);
 
+				if (!claim.getAsBoolean()) {
+					// the browser was redirected without a session at the deadline, the login
+					// is not audited, announced or counted as success
+					LOGGER.log(Level.WARNING, "Login of {0} completed after the deadline and is dropped",
+							idToken.getPreferredUsername());
+					return;
+				}
 				KeycloakAuthentication auth = new KeycloakAuthentication(idToken, token, refreshToken, tokenResponse);
+				auth.setDeploymentKey(deploymentKey);
 				SecurityContextHolder.getContext().setAuthentication(auth);
+				authenticated = true;
+				AuthAuditLog.get().record(AuthAuditLog.EventType.LOGIN, auth, null);
 
 				User currentUser = User.current();
 				if (currentUser != null) {
-					currentUser.setFullName(idToken.getPreferredUsername());
-
-					if (!currentUser.getProperty(Mailer.UserProperty.class).hasExplicitlyConfiguredAddress()) {
-						currentUser.addProperty(new Mailer.UserProperty(idToken.getEmail()));
-					}
+					// only changed values are written, off the login thread
+					UserProfileUpdater.update(currentUser, idToken.getPreferredUsername(), idToken.getEmail());
 
 					KeycloakUserDetails userDetails = new KeycloakUserDetails(
 							idToken.getPreferredUsername(), auth.getAuthorities()
@@ -278,18 +347,17 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 				}
 			}
 			if (hf != null) {
-				LOGGER.log(Level.SEVERE, "Failure Message" + ((HttpFailure) e).getError());
-				LOGGER.log(Level.SEVERE, "Failure HTTP Status" + ((HttpFailure) e).getStatus());
+				LOGGER.log(Level.SEVERE, "Failure Message" + hf.getError());
+				LOGGER.log(Level.SEVERE, "Failure HTTP Status" + hf.getStatus());
 			}
 
+		} finally {
+			KeycloakMetrics metrics = KeycloakMetrics.get();
+			if (!authenticated) {
+				metrics.loginFailed();
+			}
+			metrics.record(KeycloakMetrics.Operation.FINISH_LOGIN, start);
 		}
-
-		String referer = (String) request.getSession().getAttribute(REFERER_ATTRIBUTE);
-		if (referer != null) {
-			LOGGER.log(Level.FINEST, "Redirecting to " + referer);
-			return HttpResponses.redirectTo(referer);
-		}
-		return HttpResponses.redirectToContextRoot();
 	}
 
 	/*
@@ -302,6 +370,16 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 		return false;
 	}
 
+	/**
+	 * Called by Jenkins when this realm is applied, also if the configuration is
+	 * not saved afterwards, e.g. from the script console.
+	 */
+	@Override
+	public Filter createFilter(FilterConfig filterConfig) {
+		KeycloakFilterRegistration.update();
+		return super.createFilter(filterConfig);
+	}
+
 	@Override
 	public SecurityComponents createSecurityComponents() {
 		SecurityComponents sc = new SecurityComponents(new AuthenticationManager() {
@@ -311,10 +389,55 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 				}
 				throw new BadCredentialsException("Unexpected authentication type: " + authentication);
 			}
-		});
+		}, this::loadUserByUsername);
 		return sc;
 	}
 
+	/**
+	 * Looks up a user with the admin API of the default keycloak configuration,
+	 * if the user lookup is enabled. Otherwise no user is found, like before the
+	 * lookup existed.
+	 */
+	@Override
+	public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
+		if (!keycloakUserLookup) {
+			throw new UsernameNotFoundException(username);
+		}
+		UserDetails user;
+		try {
+			user = KeycloakUserDirectory.get().loadUser(getKeycloakDeployment(), username);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "User " + username + " could not be looked up in keycloak", e);
+			throw new UserMayOrMayNotExistException(username);
+		}
+		if (user == null) {
+			throw new UsernameNotFoundException(username);
+		}
+		return user;
+	}
+
+	/**
+	 * Looks up a realm role of the default keycloak configuration as group, if
+	 * the user lookup is enabled. Otherwise no group is found.
+	 */
+	@Override
+	public GroupDetails loadGroupByGroupname(String groupname) throws UsernameNotFoundException {
+		if (!keycloakUserLookup) {
+			throw new UsernameNotFoundException(groupname);
+		}
+		GroupDetails group;
+		try {
+			group = KeycloakUserDirectory.get().loadGroup(getKeycloakDeployment(), groupname);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Group " + groupname + " could not be looked up in keycloak", e);
+			throw new UserMayOrMayNotExistException(groupname);
+		}
+		if (group == null) {
+			throw new UsernameNotFoundException(groupname);
+		}
+		return group;
+	}
+
 	@Override
 	public String getLoginUrl() {
 		return JENKINS_LOGIN_URL;
@@ -322,19 +445,136 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 
 	@Override
 	public void doLogout(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
+		long start = System.nanoTime();
+		try {
+			logout(req, rsp);
+		} finally {
+			KeycloakMetrics.get().record(KeycloakMetrics.Operation.LOGOUT, start);
+		}
+	}
+
+	private void logout(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
 		final Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
 		if (authentication instanceof KeycloakAuthentication) {
 			KeycloakAuthentication keycloakAuthentication = (KeycloakAuthentication) authentication;
-			try {
-				ServerRequest.invokeLogout(getKeycloakDeployment(), keycloakAuthentication.getRefreshToken());
+			KeycloakDeployment deployment = getKeycloakDeployment(keycloakAuthentication);
+			try (KeycloakHttpTransport.Call call = KeycloakHttpTransport.begin(deployment)) {
+				ServerRequest.invokeLogout(deployment, keycloakAuthentication.getRefreshToken());
 			} catch (HttpFailure e) {
 				LOGGER.log(Level.SEVERE, "Logout Exception ", e);
 			}
+			AuthAuditLog.get().record(AuthAuditLog.EventType.LOGOUT, keycloakAuthentication, "user");
 		}
 		req.getSession().setAttribute(AUTH_REQUESTED, Boolean.valueOf(false));
 		super.doLogout(req, rsp);
 	}
 
+	/**
+	 * OIDC back-channel logout endpoint. Keycloak posts a signed logout token
+	 * when a session ends in keycloak, the Jenkins sessions of that keycloak
+	 * session, or of the user if the token names no session, are invalidated.
+	 * The endpoint is shared by all keycloak configurations, the token is
+	 * verified with the configurations of its issuer.
+	 *
+	 * @param req
+	 *            the request with the <code>logout_token</code> form parameter
+	 * @return {@link HttpResponse} 200 if the token was accepted, 400 otherwise
+	 */
+	@RequirePOST
+	public HttpResponse doBackchannelLogout(StaplerRequest req) {
+		String tokenString = req.getParameter("logout_token");
+		if (Strings.isNullOrEmpty(tokenString)) {
+			return HttpResponses.errorWithoutStack(400, "logout_token is missing");
+		}
+		LogoutToken logoutToken;
+		try {
+			List<KeycloakDeployment> deployments = new ArrayList<>();
+			for (KeycloakDeployment deployment : getDeploymentRegistry().getAll()) {
+				deployments.add(resolveDeployment(deployment, req));
+			}
+			logoutToken = verifyLogoutToken(deployments, tokenString);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Keycloak configurations could not be read", e);
+			return HttpResponses.errorWithoutStack(500, "keycloak configuration unavailable");
+		} catch (VerificationException e) {
+			LOGGER.log(Level.INFO, "Back-channel logout token rejected: " + e.getMessage());
+			return HttpResponses.errorWithoutStack(400, "invalid logout_token");
+		}
+		int invalidated = KeycloakSessionIndex.logout(logoutToken.getSid(), logoutToken.getSubject());
+		AuthAuditLog.get().record(AuthAuditLog.EventType.LOGOUT, null, logoutToken.getSubject(), logoutToken.getSid(),
+				"backchannel");
+		LOGGER.log(Level.FINE, "Back-channel logout of session {0} of {1} invalidated {2} sessions",
+				new Object[] { logoutToken.getSid(), logoutToken.getSubject(), invalidated });
+		return HttpResponses.status(200);
+	}
+
+	/**
+	 * Verifies a logout token with the deployments whose realm issued it. Mapped
+	 * deployments of the same realm may differ in their client, the first one
+	 * accepting the token wins.
+	 */
+	static LogoutToken verifyLogoutToken(Collection<KeycloakDeployment> deployments, String tokenString)
+			throws VerificationException {
+		String issuer;
+		try {
+			issuer = new JWSInput(tokenString).readJsonContent(JsonWebToken.class).getIssuer();
+		} catch (JWSInputException e) {
+			throw new VerificationException("Logout token can not be parsed", e);
+		}
+		VerificationException rejected = null;
+		for (KeycloakDeployment deployment : deployments) {
+			if (issuer == null || !issuer.equals(deployment.getRealmInfoUrl())) {
+				continue;
+			}
+			try {
+				return verifyLogoutToken(deployment, tokenString);
+			} catch (VerificationException e) {
+				rejected = e;
+			}
+		}
+		throw rejected != null ? rejected : new VerificationException("Logout token of unknown issuer " + issuer);
+	}
+
+	static LogoutToken verifyLogoutToken(KeycloakDeployment deployment, String tokenString)
+			throws VerificationException {
+		LogoutToken token = AdapterTokenVerifier.createVerifier(tokenString, deployment, false, LogoutToken.class)
+				.withChecks(new TokenVerifier.RealmUrlCheck(deployment.getRealmInfoUrl()),
+						new TokenVerifier.AudienceCheck(deployment.getResourceName()), TokenVerifier.IS_ACTIVE)
+				.verify().getToken();
+		Long iat = token.getIat();
+		long now = System.currentTimeMillis() / 1000;
+		if (iat == null || Math.abs(now - iat.longValue()) > LOGOUT_TOKEN_MAX_AGE_SECONDS) {
+			throw new VerificationException("Logout token was not issued within the last "
+					+ LOGOUT_TOKEN_MAX_AGE_SECONDS + " seconds");
+		}
+		Map<String, Object> events = token.getEvents();
+		if (events == null || !events.containsKey(BACKCHANNEL_LOGOUT_EVENT)) {
+			throw new VerificationException("Logout token has no back-channel logout event");
+		}
+		if (token.getOtherClaims().containsKey("nonce")) {
+			throw new VerificationException("Logout token must not contain a nonce");
+		}
+		if (token.getSid() == null && token.getSubject() == null) {
+			throw new VerificationException("Logout token names neither a session nor a user");
+		}
+		return token;
+	}
+
+	/**
+	 * Returns the metrics of the plugin as JSON, for instances without the
+	 * metrics plugin.
+	 *
+	 * @return {@link HttpResponse} the JSON response
+	 */
+	public HttpResponse doMetrics() {
+		Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+		final JSONObject json = KeycloakMetrics.get().toJSON();
+		return (req, rsp, node) -> {
+			rsp.setContentType("application/json;charset=UTF-8");
+			rsp.getWriter().write(json.toString());
+		};
+	}
+
 	/**
 	 * Descriptor definition for Jenkins
 	 * 
@@ -394,9 +634,24 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 					json.put("keycloakRespectAccessTokenTimeout", validate.getBoolean("keycloakRespectAccessTokenTimeout"));
 					LOGGER.log(Level.FINE, "Respect access token timeout is set to " + validate.getBoolean("keycloakRespectAccessTokenTimeout"));
 				}
+				if (validate.containsKey("keycloakLocalValidation")) {
+					json.put("keycloakLocalValidation", validate.getBoolean("keycloakLocalValidation"));
+					LOGGER.log(Level.FINE, "Local token validation is set to " + validate.getBoolean("keycloakLocalValidation"));
+				}
+				if (validate.containsKey("keycloakMaxTokenStaleness")) {
+					json.put("keycloakMaxTokenStaleness", validate.getInt("keycloakMaxTokenStaleness"));
+					LOGGER.log(Level.FINE, "Max token staleness is set to " + validate.getInt("keycloakMaxTokenStaleness"));
+				}
+				if (validate.containsKey("keycloakMinRefreshInterval")) {
+					json.put("keycloakMinRefreshInterval", validate.getInt("keycloakMinRefreshInterval"));
+					LOGGER.log(Level.FINE, "Min refresh interval is set to " + validate.getInt("keycloakMinRefreshInterval"));
+				}
 			} else {
 				json.put("keycloakValidate", false);
 				json.put("keycloakRespectAccessTokenTimeout", true);
+				json.put("keycloakLocalValidation", false);
+				json.put("keycloakMaxTokenStaleness", DEFAULT_MAX_TOKEN_STALENESS);
+				json.put("keycloakMinRefreshInterval", DEFAULT_MIN_REFRESH_INTERVAL);
 			}
 			return super.configure(req, json);
 		}
@@ -433,6 +688,32 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 	@DataBoundSetter
 	public void setKeycloakJson(String keycloakJson) {
 		this.keycloakJson = keycloakJson;
+		invalidateDeploymentRegistry();
+	}
+
+	/**
+	 * Returns the additional keycloak configurations selected by host name or path
+	 * prefix
+	 *
+	 * @return list of {@link KeycloakDeploymentMapping}
+	 */
+	public List<KeycloakDeploymentMapping> getKeycloakDeploymentMappings() {
+		return keycloakDeploymentMappings == null ? Collections.<KeycloakDeploymentMapping>emptyList()
+				: keycloakDeploymentMappings;
+	}
+
+	/**
+	 * Sets the additional keycloak configurations selected by host name or path
+	 * prefix
+	 *
+	 * @param keycloakDeploymentMappings
+	 *            list of {@link KeycloakDeploymentMapping}
+	 */
+	@DataBoundSetter
+	public void setKeycloakDeploymentMappings(List<KeycloakDeploymentMapping> keycloakDeploymentMappings) {
+		this.keycloakDeploymentMappings = keycloakDeploymentMappings == null ? new ArrayList<>()
+				: new ArrayList<>(keycloakDeploymentMappings);
+		invalidateDeploymentRegistry();
 	}
 
 	/**
@@ -478,6 +759,209 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 		this.keycloakRespectAccessTokenTimeout = keycloakRespectAccessTokenTimeout;
 	}
 
+	/**
+	 * Returns the configuration parameter for the local token validation
+	 *
+	 * @return {@link Boolean} whether the access token is verified locally on each
+	 *         request instead of being refreshed
+	 */
+	public boolean isKeycloakLocalValidation() {
+		return keycloakLocalValidation;
+	}
+
+	/**
+	 * Sets the configuration parameter for the local token validation
+	 *
+	 * @param keycloakLocalValidation
+	 *            {@link Boolean} whether the access token is verified locally on
+	 *            each request instead of being refreshed
+	 */
+	@DataBoundSetter
+	public void setKeycloakLocalValidation(boolean keycloakLocalValidation) {
+		this.keycloakLocalValidation = keycloakLocalValidation;
+	}
+
+	/**
+	 * Returns the seconds a session may continue on an expired access token while
+	 * keycloak is not available
+	 *
+	 * @return int the staleness bound in seconds, 0 to log out immediately
+	 */
+	public int getKeycloakMaxTokenStaleness() {
+		Integer staleness = keycloakMaxTokenStaleness;
+		return staleness == null ? DEFAULT_MAX_TOKEN_STALENESS : Math.max(0, staleness.intValue());
+	}
+
+	/**
+	 * Sets the seconds a session may continue on an expired access token while
+	 * keycloak is not available
+	 *
+	 * @param keycloakMaxTokenStaleness
+	 *            int the staleness bound in seconds, 0 to log out immediately
+	 */
+	@DataBoundSetter
+	public void setKeycloakMaxTokenStaleness(int keycloakMaxTokenStaleness) {
+		this.keycloakMaxTokenStaleness = Integer.valueOf(keycloakMaxTokenStaleness);
+	}
+
+	/**
+	 * Returns the seconds after which a session is refreshed again if the access
+	 * token timeout is not respected
+	 *
+	 * @return int the minimum refresh interval in seconds
+	 */
+	public int getKeycloakMinRefreshInterval() {
+		return keycloakMinRefreshInterval > 0 ? keycloakMinRefreshInterval : DEFAULT_MIN_REFRESH_INTERVAL;
+	}
+
+	/**
+	 * Sets the seconds after which a session is refreshed again if the access
+	 * token timeout is not respected
+	 *
+	 * @param keycloakMinRefreshInterval
+	 *            int the minimum refresh interval in seconds
+	 */
+	@DataBoundSetter
+	public void setKeycloakMinRefreshInterval(int keycloakMinRefreshInterval) {
+		this.keycloakMinRefreshInterval = keycloakMinRefreshInterval;
+	}
+
+	/**
+	 * Returns whether requests with a keycloak access token in the Authorization
+	 * header are authenticated
+	 *
+	 * @return {@link Boolean} if true, bearer tokens are accepted
+	 */
+	public boolean isKeycloakBearerAuthentication() {
+		return keycloakBearerAuthentication;
+	}
+
+	/**
+	 * Sets whether requests with a keycloak access token in the Authorization
+	 * header are authenticated
+	 *
+	 * @param keycloakBearerAuthentication
+	 *            {@link Boolean} if true, bearer tokens are accepted
+	 */
+	@DataBoundSetter
+	public void setKeycloakBearerAuthentication(boolean keycloakBearerAuthentication) {
+		this.keycloakBearerAuthentication = keycloakBearerAuthentication;
+	}
+
+	/**
+	 * Returns whether bearer tokens which can not be verified locally are checked
+	 * with the token introspection endpoint
+	 *
+	 * @return {@link Boolean} if true, opaque and offline tokens are introspected
+	 */
+	public boolean isKeycloakTokenIntrospection() {
+		return keycloakTokenIntrospection;
+	}
+
+	/**
+	 * Sets whether bearer tokens which can not be verified locally are checked
+	 * with the token introspection endpoint
+	 *
+	 * @param keycloakTokenIntrospection
+	 *            {@link Boolean} if true, opaque and offline tokens are
+	 *            introspected
+	 */
+	@DataBoundSetter
+	public void setKeycloakTokenIntrospection(boolean keycloakTokenIntrospection) {
+		this.keycloakTokenIntrospection = keycloakTokenIntrospection;
+	}
+
+	/**
+	 * Returns whether users and groups are looked up with the keycloak admin API
+	 *
+	 * @return {@link Boolean} if true, users who are not logged in are looked up
+	 */
+	public boolean isKeycloakUserLookup() {
+		return keycloakUserLookup;
+	}
+
+	/**
+	 * Sets whether users and groups are looked up with the keycloak admin API
+	 *
+	 * @param keycloakUserLookup
+	 *            {@link Boolean} if true, users who are not logged in are looked
+	 *            up
+	 */
+	@DataBoundSetter
+	public void setKeycloakUserLookup(boolean keycloakUserLookup) {
+		this.keycloakUserLookup = keycloakUserLookup;
+		KeycloakUserDirectory.get().clear();
+	}
+
+	/**
+	 * Returns the maximum number of pooled connections to keycloak
+	 *
+	 * @return int the number of connections per keycloak configuration, 0 to use
+	 *         the value of the keycloak json
+	 */
+	public int getKeycloakConnectionPoolSize() {
+		return Math.max(0, keycloakConnectionPoolSize);
+	}
+
+	/**
+	 * Sets the maximum number of pooled connections to keycloak
+	 *
+	 * @param keycloakConnectionPoolSize
+	 *            int the number of connections per keycloak configuration, 0
+	 *            to use the value of the keycloak json
+	 */
+	@DataBoundSetter
+	public void setKeycloakConnectionPoolSize(int keycloakConnectionPoolSize) {
+		this.keycloakConnectionPoolSize = keycloakConnectionPoolSize;
+		invalidateDeploymentRegistry();
+	}
+
+	/**
+	 * Returns the seconds to wait for a connection to keycloak
+	 *
+	 * @return int the connect timeout in seconds, 0 to use the value of the
+	 *         keycloak json
+	 */
+	public int getKeycloakConnectTimeout() {
+		return Math.max(0, keycloakConnectTimeout);
+	}
+
+	/**
+	 * Sets the seconds to wait for a connection to keycloak
+	 *
+	 * @param keycloakConnectTimeout
+	 *            int the connect timeout in seconds, 0 to use the value of the
+	 *            keycloak json
+	 */
+	@DataBoundSetter
+	public void setKeycloakConnectTimeout(int keycloakConnectTimeout) {
+		this.keycloakConnectTimeout = keycloakConnectTimeout;
+		invalidateDeploymentRegistry();
+	}
+
+	/**
+	 * Returns the seconds to wait for data of a keycloak response
+	 *
+	 * @return int the read timeout in seconds, 0 to use the value of the
+	 *         keycloak json
+	 */
+	public int getKeycloakReadTimeout() {
+		return Math.max(0, keycloakReadTimeout);
+	}
+
+	/**
+	 * Sets the seconds to wait for data of a keycloak response
+	 *
+	 * @param keycloakReadTimeout
+	 *            int the read timeout in seconds, 0 to use the value of the
+	 *            keycloak json
+	 */
+	@DataBoundSetter
+	public void setKeycloakReadTimeout(int keycloakReadTimeout) {
+		this.keycloakReadTimeout = keycloakReadTimeout;
+		invalidateDeploymentRegistry();
+	}
+
 	/**
 	 * Returns the keycloak idp hint.
 	 *
@@ -516,18 +1000,110 @@ public class KeycloakSecurityRealm extends SecurityRealm {
 		return isKeycloakRespectAccessTokenTimeout();
 	}
 
+	/**
+	 * Returns true if the access token should be verified locally and only be
+	 * refreshed after its timeout
+	 *
+	 * @return {@link Boolean}
+	 */
+	public boolean validateTokenLocally() {
+		return isKeycloakLocalValidation();
+	}
+
 	/**
 	 * Returns the current KeycloakDeployment configuration.
 	 * 
 	 * @return {@link KeycloakDeployment} the keycloak configuration
 	 * @throws IOException
 	 */
-	public synchronized KeycloakDeployment getKeycloakDeployment() throws IOException {
-		if (keycloakDeployment == null || keycloakDeployment.getClient() == null) {
-			AdapterConfig adapterConfig = JsonSerialization.readValue(getKeycloakJson(), AdapterConfig.class);
-			keycloakDeployment = KeycloakDeploymentBuilder.build(adapterConfig);
+	public KeycloakDeployment getKeycloakDeployment() throws IOException {
+		return getDeploymentRegistry().getDefault();
+	}
+
+	/**
+	 * Returns the KeycloakDeployment responsible for the given request, selected by
+	 * its host name or path prefix.
+	 *
+	 * @param request
+	 *            the {@link HttpServletRequest}
+	 * @return {@link KeycloakDeployment} the keycloak configuration
+	 * @throws IOException
+	 */
+	public KeycloakDeployment getKeycloakDeployment(HttpServletRequest request) throws IOException {
+		KeycloakDeploymentRegistry registry = getDeploymentRegistry();
+		return registry.get(registry.resolveKey(request));
+	}
+
+	/**
+	 * Returns the KeycloakDeployment which issued the tokens of the given
+	 * authentication.
+	 *
+	 * @param authentication
+	 *            the {@link KeycloakAuthentication}
+	 * @return {@link KeycloakDeployment} the keycloak configuration
+	 * @throws IOException
+	 */
+	public KeycloakDeployment getKeycloakDeployment(KeycloakAuthentication authentication) throws IOException {
+		return getDeploymentRegistry().get(authentication.getDeploymentKey());
+	}
+
+	/**
+	 * Returns the deployments of the current configuration. Readers take no lock,
+	 * the registry is only built under the lock of the realm once after a config
+	 * change.
+	 */
+	KeycloakDeploymentRegistry getDeploymentRegistry() throws IOException {
+		KeycloakDeploymentRegistry registry = deploymentRegistry;
+		if (registry != null) {
+			return registry;
+		}
+		synchronized (this) {
+			registry = deploymentRegistry;
+			if (registry == null) {
+				registry = KeycloakDeploymentRegistry.build(getKeycloakJson(), getKeycloakDeploymentMappings(),
+						new KeycloakHttpTransport(getKeycloakConnectionPoolSize(), getKeycloakConnectTimeout(),
+								getKeycloakReadTimeout()));
+				deploymentRegistry = registry;
+				// the key prefetch checks that the realm uses the registry
+				registry.start();
+			}
+			return registry;
+		}
+	}
+
+	/**
+	 * Drops the deployments after a config change, the next request builds them
+	 * from the new configuration.
+	 */
+	private void invalidateDeploymentRegistry() {
+		KeycloakDeploymentRegistry old;
+		synchronized (this) {
+			old = deploymentRegistry;
+			deploymentRegistry = null;
 		}
-		return keycloakDeployment;
+		if (old != null) {
+			old.stop();
+		}
+	}
+
+	/**
+	 * Returns the cache of the realm signing keys of the default deployment.
+	 *
+	 * @return {@link RealmKeyCache} the cache or null if a realm public key is
+	 *         configured or the deployment is not built yet
+	 */
+	public RealmKeyCache getKeyCache() {
+		KeycloakDeploymentRegistry registry = deploymentRegistry;
+		if (registry == null) {
+			return null;
+		}
+		PublicKeyLocator locator = registry.getDefault().getPublicKeyLocator();
+		return locator instanceof RealmKeyCache ? (RealmKeyCache) locator : null;
+	}
+
+	boolean usesKeyCache(RealmKeyCache cache) {
+		KeycloakDeploymentRegistry registry = deploymentRegistry;
+		return registry != null && registry.getKeyCaches().contains(cache);
 	}
 
 	/**
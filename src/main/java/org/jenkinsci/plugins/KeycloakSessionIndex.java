@@ -0,0 +1,170 @@
+package org.jenkinsci.plugins;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionActivationListener;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+import javax.servlet.http.HttpSessionEvent;
+
+import org.acegisecurity.Authentication;
+
+/**
+ * Index of the HTTP sessions of logged in users by keycloak session id and
+ * subject, so a back-channel logout invalidates the affected sessions without
+ * scanning all sessions.
+ *
+ * Sessions are indexed through an attribute which the container notifies when
+ * the session is invalidated, expires, is passivated or activated, so the
+ * index never holds sessions which are gone.
+ *
+ * @author dev.lauer@elnarion.de
+ *
+ */
+final class KeycloakSessionIndex {
+
+	private static final Logger LOGGER = Logger.getLogger(KeycloakSessionIndex.class.getName());
+
+	static final String BINDING_ATTRIBUTE = KeycloakSessionIndex.class.getName() + ".binding";
+
+	private static final ConcurrentMap<String, Set<HttpSession>> BY_SESSION_ID = new ConcurrentHashMap<>();
+
+	private static final ConcurrentMap<String, Set<HttpSession>> BY_SUBJECT = new ConcurrentHashMap<>();
+
+	private KeycloakSessionIndex() {
+	}
+
+	/**
+	 * Indexes the given session if it belongs to a keycloak login.
+	 *
+	 * @param session
+	 *            the {@link HttpSession} of the login
+	 * @param authentication
+	 *            the {@link Authentication} stored in the session
+	 */
+	static void bind(HttpSession session, Authentication authentication) {
+		if (!(authentication instanceof KeycloakAuthentication)) {
+			return;
+		}
+		KeycloakAuthentication ka = (KeycloakAuthentication) authentication;
+		if (ka.getSessionId() == null && ka.getSubject() == null) {
+			return;
+		}
+		// the container calls valueBound, which adds the session to the index
+		session.setAttribute(BINDING_ATTRIBUTE, new Binding(ka.getSessionId(), ka.getSubject()));
+	}
+
+	/**
+	 * Invalidates the sessions of a keycloak session or, without a session id, of
+	 * a keycloak user.
+	 *
+	 * @param sessionId
+	 *            the keycloak session id (<code>sid</code>), may be null
+	 * @param subject
+	 *            the keycloak user id (<code>sub</code>), may be null
+	 * @return int - the number of invalidated sessions
+	 */
+	static int logout(String sessionId, String subject) {
+		Set<HttpSession> sessions = sessionId != null ? BY_SESSION_ID.remove(sessionId)
+				: subject != null ? BY_SUBJECT.remove(subject) : null;
+		if (sessions == null) {
+			return 0;
+		}
+		int invalidated = 0;
+		for (HttpSession session : sessions) {
+			try {
+				// removes the session from the other index through valueUnbound
+				session.invalidate();
+				invalidated++;
+			} catch (IllegalStateException e) {
+				LOGGER.log(Level.FINE, "Session was already invalidated", e);
+			}
+		}
+		return invalidated;
+	}
+
+	/**
+	 * Returns the number of indexed keycloak sessions.
+	 *
+	 * @return int
+	 */
+	static int size() {
+		return BY_SESSION_ID.size();
+	}
+
+	private static void add(ConcurrentMap<String, Set<HttpSession>> index, String key, final HttpSession session) {
+		if (key == null) {
+			return;
+		}
+		index.compute(key, (k, sessions) -> {
+			Set<HttpSession> result = sessions == null
+					? Collections.newSetFromMap(new ConcurrentHashMap<HttpSession, Boolean>())
+					: sessions;
+			result.add(session);
+			return result;
+		});
+	}
+
+	private static void remove(ConcurrentMap<String, Set<HttpSession>> index, String key, final HttpSession session) {
+		if (key == null) {
+			return;
+		}
+		index.computeIfPresent(key, (k, sessions) -> {
+			sessions.remove(session);
+			return sessions.isEmpty() ? null : sessions;
+		});
+	}
+
+	/**
+	 * Session attribute keeping the index up to date.
+	 */
+	static final class Binding implements HttpSessionBindingListener, HttpSessionActivationListener, Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String sessionId;
+
+		private final String subject;
+
+		Binding(String sessionId, String subject) {
+			this.sessionId = sessionId;
+			this.subject = subject;
+		}
+
+		@Override
+		public void valueBound(HttpSessionBindingEvent event) {
+			index(event.getSession());
+		}
+
+		@Override
+		public void valueUnbound(HttpSessionBindingEvent event) {
+			unindex(event.getSession());
+		}
+
+		@Override
+		public void sessionWillPassivate(HttpSessionEvent se) {
+			unindex(se.getSession());
+		}
+
+		@Override
+		public void sessionDidActivate(HttpSessionEvent se) {
+			index(se.getSession());
+		}
+
+		private void index(HttpSession session) {
+			add(BY_SESSION_ID, sessionId, session);
+			add(BY_SUBJECT, subject, session);
+		}
+
+		private void unindex(HttpSession session) {
+			remove(BY_SESSION_ID, sessionId, session);
+			remove(BY_SUBJECT, subject, session);
+		}
+	}
+}
@@ -51,4 +51,16 @@ public class KeycloakUserDetails extends User {
     public KeycloakUserDetails(String username, GrantedAuthority[] authorities) throws IllegalArgumentException {
         super(username, "", true, true, true, true, authorities);
     }
+
+    /**
+     * Instantiates a new keycloak user details.
+     *
+     * @param username    the username
+     * @param enabled     whether the user is enabled in keycloak
+     * @param authorities the authorities
+     * @throws IllegalArgumentException the illegal argument exception
+     */
+    public KeycloakUserDetails(String username, boolean enabled, GrantedAuthority[] authorities) throws IllegalArgumentException {
+        super(username, "", enabled, true, true, true, authorities);
+    }
 }
@@ -0,0 +1,343 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.security.GroupDetails;
+import hudson.security.SecurityRealm;
+
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.userdetails.UserDetails;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.keycloak.OAuth2Constants;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.authentication.ClientCredentialsProviderUtils;
+import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.representations.idm.RoleRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.util.JsonSerialization;
+
+/**
+ * Looks up users and groups of users who are not logged in with the admin REST
+ * API of the realm, e.g. for API tokens, impersonation of queued builds and
+ * group checks of authorization strategies. The client configured in the
+ * keycloak JSON needs an enabled service account with the
+ * <code>view-users</code> and <code>view-realm</code> roles of the
+ * <code>realm-management</code> client.
+ *
+ * Users get their effective realm roles as authorities, like the roles of the
+ * access token at login. Groups are realm roles.
+ *
+ * Found and missing users and groups are cached, missing ones for a shorter
+ * time. Concurrent lookups of the same name share one call, so a queue of
+ * builds of one user costs a single lookup. The service account token is
+ * cached until shortly before it expires.
+ *
+ * @author dev.lauer@elnarion.de
+ *
+ */
+public final class KeycloakUserDirectory {
+
+	private static final Logger LOGGER = Logger.getLogger(KeycloakUserDirectory.class.getName());
+
+	private static final String PROPERTY_PREFIX = KeycloakUserDirectory.class.getName();
+
+	/**
+	 * Maximum number of users and groups kept in the cache.
+	 */
+	static final int CACHE_SIZE = Math.max(1, Integer.getInteger(PROPERTY_PREFIX + ".cacheSize", 10000));
+
+	/**
+	 * Seconds a found user or group is cached.
+	 */
+	static final int CACHE_SECONDS = Integer.getInteger(PROPERTY_PREFIX + ".cacheSeconds", 300);
+
+	/**
+	 * Seconds a missing user or group is cached.
+	 */
+	static final int NEGATIVE_CACHE_SECONDS = Integer.getInteger(PROPERTY_PREFIX + ".negativeCacheSeconds", 60);
+
+	// the service account token is renewed this long before it expires
+	private static final long TOKEN_EXPIRY_MARGIN_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+	private static final KeycloakUserDirectory INSTANCE = new KeycloakUserDirectory();
+
+	private final ExpiringLruCache<String, Result> results = new ExpiringLruCache<>(CACHE_SIZE);
+
+	private final ExpiringLruCache<String, AccessTokenResponse> serviceAccountTokens = new ExpiringLruCache<>(16);
+
+	private final AtomicLong lookups = new AtomicLong();
+
+	private KeycloakUserDirectory() {
+	}
+
+	/**
+	 * Returns the JVM wide directory instance.
+	 *
+	 * @return {@link KeycloakUserDirectory}
+	 */
+	public static KeycloakUserDirectory get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Looks up a user by name.
+	 *
+	 * @param deployment
+	 *            the {@link KeycloakDeployment} of the realm
+	 * @param username
+	 *            the keycloak user name
+	 * @return {@link UserDetails} or null if the realm has no such user
+	 * @throws IOException
+	 *             if keycloak could not be asked
+	 */
+	public UserDetails loadUser(KeycloakDeployment deployment, String username) throws IOException {
+		return loadUser(deployment, username, System.currentTimeMillis());
+	}
+
+	/**
+	 * Looks up a user by name at the given time.
+	 *
+	 * @param deployment
+	 *            the {@link KeycloakDeployment} of the realm
+	 * @param username
+	 *            the keycloak user name
+	 * @param now
+	 *            the time to check cached results against in epoch milliseconds
+	 * @return {@link UserDetails} or null if the realm has no such user
+	 * @throws IOException
+	 *             if keycloak could not be asked
+	 */
+	UserDetails loadUser(final KeycloakDeployment deployment, final String username, long now) throws IOException {
+		Result result = load(deployment, "user " + username, now, new Lookup() {
+			@Override
+			public Object lookup(String adminUrl, String token) throws IOException {
+				return lookupUser(deployment, adminUrl, token, username);
+			}
+		});
+		return (UserDetails) result.value;
+	}
+
+	/**
+	 * Looks up a group, which is a realm role, by name.
+	 *
+	 * @param deployment
+	 *            the {@link KeycloakDeployment} of the realm
+	 * @param groupname
+	 *            the role name
+	 * @return {@link GroupDetails} or null if the realm has no such role
+	 * @throws IOException
+	 *             if keycloak could not be asked
+	 */
+	public GroupDetails loadGroup(final KeycloakDeployment deployment, final String groupname) throws IOException {
+		Result result = load(deployment, "group " + groupname, System.currentTimeMillis(), new Lookup() {
+			@Override
+			public Object lookup(String adminUrl, String token) throws IOException {
+				RoleRepresentation role = getJson(deployment, adminUrl + "/roles/" + encodePath(groupname), token,
+						RoleRepresentation.class);
+				return role == null ? null : new RoleGroupDetails(role.getName());
+			}
+		});
+		return (GroupDetails) result.value;
+	}
+
+	private Result load(final KeycloakDeployment deployment, String name, final long now, final Lookup lookup)
+			throws IOException {
+		final String adminUrl = deployment.getAuthServerBaseUrl() + "/admin/realms/" + encodePath(deployment.getRealm());
+		return results.get(adminUrl + ' ' + name, now, new ExpiringLruCache.Loader<Result>() {
+			@Override
+			public Result load() throws IOException {
+				lookups.incrementAndGet();
+				Object value = lookup.lookup(adminUrl, serviceAccountToken(deployment));
+				return value == null ? Result.MISSING : new Result(value);
+			}
+
+			@Override
+			public long expiresAt(Result value) {
+				int seconds = value == Result.MISSING ? NEGATIVE_CACHE_SECONDS : CACHE_SECONDS;
+				return now + TimeUnit.SECONDS.toMillis(seconds);
+			}
+		});
+	}
+
+	private static UserDetails lookupUser(KeycloakDeployment deployment, String adminUrl, String token,
+			String username) throws IOException {
+		UserRepresentation[] users = getJson(deployment,
+				adminUrl + "/users?exact=true&username=" + URLEncoder.encode(username, "UTF-8"), token,
+				UserRepresentation[].class);
+		UserRepresentation user = null;
+		if (users != null) {
+			for (UserRepresentation candidate : users) {
+				// keycloak stores user names in lower case
+				if (username.equalsIgnoreCase(candidate.getUsername())) {
+					user = candidate;
+					break;
+				}
+			}
+		}
+		if (user == null) {
+			return null;
+		}
+		RoleRepresentation[] roles = getJson(deployment,
+				adminUrl + "/users/" + encodePath(user.getId()) + "/role-mappings/realm/composite", token,
+				RoleRepresentation[].class);
+		List<GrantedAuthority> authorities = new ArrayList<>();
+		if (roles != null) {
+			for (RoleRepresentation role : roles) {
+				authorities.add(GrantedAuthorities.of(role.getName()));
+			}
+		}
+		authorities.add(SecurityRealm.AUTHENTICATED_AUTHORITY);
+		return new KeycloakUserDetails(user.getUsername(), !Boolean.FALSE.equals(user.isEnabled()),
+				authorities.toArray(new GrantedAuthority[authorities.size()]));
+	}
+
+	/**
+	 * Sends an admin API request.
+	 *
+	 * @return the parsed response, null if keycloak answered 404
+	 */
+	private static <T> T getJson(KeycloakDeployment deployment, String url, String token, Class<T> type)
+			throws IOException {
+		HttpGet get = new HttpGet(url);
+		get.setHeader("Authorization", "Bearer " + token);
+		get.setHeader("Accept", "application/json");
+		try (KeycloakHttpTransport.Call call = KeycloakHttpTransport.begin(deployment)) {
+			HttpResponse response = deployment.getClient().execute(get);
+			HttpEntity entity = response.getEntity();
+			int status = response.getStatusLine().getStatusCode();
+			if (status == 404) {
+				EntityUtils.consumeQuietly(entity);
+				return null;
+			}
+			if (status != 200) {
+				EntityUtils.consumeQuietly(entity);
+				throw new IOException("Unexpected status " + status + " from " + url);
+			}
+			try (InputStream is = entity.getContent()) {
+				return JsonSerialization.readValue(is, type);
+			}
+		}
+	}
+
+	private String serviceAccountToken(final KeycloakDeployment deployment) throws IOException {
+		final String tokenUrl = deployment.getTokenUrl();
+		AccessTokenResponse atr = serviceAccountTokens.get(tokenUrl + ' ' + deployment.getResourceName(),
+				System.currentTimeMillis(), new ExpiringLruCache.Loader<AccessTokenResponse>() {
+					@Override
+					public AccessTokenResponse load() throws IOException {
+						return requestServiceAccountToken(deployment, tokenUrl);
+					}
+
+					@Override
+					public long expiresAt(AccessTokenResponse value) {
+						return System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(value.getExpiresIn())
+								- TOKEN_EXPIRY_MARGIN_MILLIS;
+					}
+				});
+		return atr.getToken();
+	}
+
+	private static AccessTokenResponse requestServiceAccountToken(KeycloakDeployment deployment, String tokenUrl)
+			throws IOException {
+		HttpPost post = new HttpPost(tokenUrl);
+		List<NameValuePair> formparams = new ArrayList<>();
+		formparams.add(new BasicNameValuePair(OAuth2Constants.GRANT_TYPE, OAuth2Constants.CLIENT_CREDENTIALS));
+		ClientCredentialsProviderUtils.setClientCredentials(deployment, post, formparams);
+		post.setEntity(new UrlEncodedFormEntity(formparams, "UTF-8"));
+		try (KeycloakHttpTransport.Call call = KeycloakHttpTransport.begin(deployment)) {
+			HttpResponse response = deployment.getClient().execute(post);
+			HttpEntity entity = response.getEntity();
+			int status = response.getStatusLine().getStatusCode();
+			if (status != 200) {
+				EntityUtils.consumeQuietly(entity);
+				throw new IOException("Service account token request to " + tokenUrl + " failed with status " + status);
+			}
+			try (InputStream is = entity.getContent()) {
+				AccessTokenResponse atr = JsonSerialization.readValue(is, AccessTokenResponse.class);
+				LOGGER.log(Level.FINE, "Service account token of {0} obtained", deployment.getResourceName());
+				return atr;
+			}
+		}
+	}
+
+	private static String encodePath(String segment) throws UnsupportedEncodingException {
+		return URLEncoder.encode(segment, "UTF-8").replace("+", "%20");
+	}
+
+	/**
+	 * Removes all cached users and groups.
+	 */
+	public void clear() {
+		results.clear();
+	}
+
+	/**
+	 * Returns the number of cached users and groups.
+	 *
+	 * @return int
+	 */
+	public int getCacheSize() {
+		return results.size();
+	}
+
+	/**
+	 * Returns the share of lookups answered from the cache.
+	 *
+	 * @return double - between 0 and 1
+	 */
+	public double getCacheHitRatio() {
+		return results.getHitRatio();
+	}
+
+	/**
+	 * Returns the number of lookups sent to keycloak.
+	 *
+	 * @return long
+	 */
+	public long getLookupCount() {
+		return lookups.get();
+	}
+
+	private interface Lookup {
+		Object lookup(String adminUrl, String token) throws IOException;
+	}
+
+	private static final class Result {
+		private static final Result MISSING = new Result(null);
+
+		private final Object value;
+
+		private Result(Object value) {
+			this.value = value;
+		}
+	}
+
+	private static final class RoleGroupDetails extends GroupDetails {
+		private final String name;
+
+		private RoleGroupDetails(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+	}
+}
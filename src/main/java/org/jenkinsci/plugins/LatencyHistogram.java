@@ -0,0 +1,91 @@
+package org.jenkinsci.plugins;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with power of two buckets in nanoseconds. Recording is a
+ * handful of atomic increments without any lock, so it can be used on the
+ * request path. Percentiles are reported as the upper bound of their bucket,
+ * which is accurate to a factor of two.
+ *
+ * @author dev.lauer@elnarion.de
+ *
+ */
+final class LatencyHistogram {
+
+	private static final int BUCKETS = 64;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+	private final LongAdder count = new LongAdder();
+
+	private final LongAdder sum = new LongAdder();
+
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a duration.
+	 *
+	 * @param nanos the duration in nanoseconds
+	 */
+	void record(long nanos) {
+		long value = Math.max(0, nanos);
+		// bucket i holds the values of bit length i, i.e. below 2^i
+		buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+		count.increment();
+		sum.add(value);
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	long getCount() {
+		return count.sum();
+	}
+
+	long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the mean duration.
+	 *
+	 * @return long - the mean in nanoseconds, 0 if nothing was recorded
+	 */
+	long getMean() {
+		long c = count.sum();
+		return c == 0 ? 0 : sum.sum() / c;
+	}
+
+	/**
+	 * Returns the given percentile.
+	 *
+	 * @param quantile the quantile between 0 and 1, e.g. 0.99
+	 * @return long - the upper bound of the bucket holding the percentile in
+	 *         nanoseconds, 0 if nothing was recorded
+	 */
+	long getPercentile(double quantile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = buckets.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank && snapshot[i] > 0) {
+				// the bound never exceeds the real maximum
+				return Math.min((1L << i) - 1, max.get());
+			}
+		}
+		return max.get();
+	}
+}
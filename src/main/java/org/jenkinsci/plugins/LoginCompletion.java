@@ -0,0 +1,214 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.HttpSessionContextIntegrationFilter;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.acegisecurity.providers.anonymous.AnonymousAuthenticationToken;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+/**
+ * Completes a login outside of the request thread. The code to token exchange
+ * with keycloak and the user updates run on a bounded executor while the
+ * request is suspended with the servlet async API, so a slow keycloak does not
+ * block the HTTP threads of Jenkins. The whole login has to finish within a
+ * configurable deadline, otherwise the browser is redirected without being
+ * logged in. A login claims the request before it takes effect, so a login
+ * finishing after the deadline leaves no trace.
+ *
+ * If the container does not support async requests or the executor is
+ * saturated, the login is completed on the request thread as before.
+ *
+ * @author dev.lauer@elnarion.de
+ *
+ */
+final class LoginCompletion implements HttpResponse {
+
+	private static final Logger LOGGER = Logger.getLogger(LoginCompletion.class.getName());
+
+	private static final String PROPERTY_PREFIX = LoginCompletion.class.getName();
+
+	/**
+	 * Whether logins are completed asynchronously.
+	 */
+	static final boolean ASYNC = Boolean
+			.parseBoolean(System.getProperty(PROPERTY_PREFIX + ".async", Boolean.TRUE.toString()));
+
+	/**
+	 * Number of threads completing logins.
+	 */
+	static final int POOL_SIZE = Math.max(1, Integer.getInteger(PROPERTY_PREFIX + ".poolSize", 16));
+
+	/**
+	 * Number of logins waiting for a thread before logins are completed on the
+	 * request thread.
+	 */
+	static final int QUEUE_SIZE = Math.max(1, Integer.getInteger(PROPERTY_PREFIX + ".queueSize", 256));
+
+	/**
+	 * Seconds a login may take until the browser is redirected without it.
+	 */
+	static final int TIMEOUT_SECONDS = Math.max(1, Integer.getInteger(PROPERTY_PREFIX + ".timeoutSeconds", 60));
+
+	private static final ThreadPoolExecutor EXECUTOR = createExecutor();
+
+	private final Login login;
+
+	private final String target;
+
+	/**
+	 * The login work, which sets the authentication of the current thread on
+	 * success.
+	 */
+	interface Login {
+		/**
+		 * Runs the login.
+		 *
+		 * @param claim
+		 *            to be called before the login takes effect, i.e. before the
+		 *            authentication is set and any event is fired. Returns false
+		 *            if the deadline passed, the login has to stop then.
+		 */
+		void run(BooleanSupplier claim);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param login
+	 *            the {@link Login} work
+	 * @param target
+	 *            the URL the browser is redirected to afterwards
+	 */
+	LoginCompletion(Login login, String target) {
+		this.login = login;
+		this.target = target;
+	}
+
+	private static ThreadPoolExecutor createExecutor() {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+				new NamingThreadFactory(new DaemonThreadFactory(), "Keycloak login completion"));
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	@Override
+	public void generateResponse(StaplerRequest req, StaplerResponse rsp, Object node)
+			throws IOException, ServletException {
+		if (!ASYNC || !req.isAsyncSupported()) {
+			login.run(() -> true);
+			KeycloakSessionIndex.bind(req.getSession(), SecurityContextHolder.getContext().getAuthentication());
+			rsp.sendRedirect(target);
+			return;
+		}
+		final HttpSession session = req.getSession();
+		final AsyncContext asyncContext = req.startAsync();
+		final AtomicBoolean finished = new AtomicBoolean();
+		asyncContext.setTimeout(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+		asyncContext.addListener(new AsyncListener() {
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				if (finished.compareAndSet(false, true)) {
+					LOGGER.log(Level.WARNING, "Login did not complete within {0} seconds", TIMEOUT_SECONDS);
+					redirect(asyncContext);
+				}
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) {
+			}
+
+			@Override
+			public void onError(AsyncEvent event) {
+			}
+
+			@Override
+			public void onComplete(AsyncEvent event) {
+			}
+		});
+		Runnable task = () -> complete(asyncContext, session, finished);
+		try {
+			EXECUTOR.execute(task);
+		} catch (RejectedExecutionException e) {
+			LOGGER.log(Level.FINE, "Login completion executor is saturated, completing login on the request thread");
+			task.run();
+		}
+	}
+
+	private void complete(AsyncContext asyncContext, HttpSession session, AtomicBoolean finished) {
+		// true once the login claimed the request, failed logins claim it afterwards
+		// for the redirect
+		final AtomicBoolean claimed = new AtomicBoolean();
+		BooleanSupplier claim = () -> {
+			if (finished.compareAndSet(false, true)) {
+				claimed.set(true);
+			}
+			return claimed.get();
+		};
+		// run with a context of its own, the request thread stores nothing into the
+		// session as its context did not change
+		try (ACLContext ctx = ACL.as(Jenkins.ANONYMOUS)) {
+			login.run(claim);
+			if (!claim.getAsBoolean()) {
+				// the browser was already redirected at the deadline
+				return;
+			}
+			Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+			if (!(authentication instanceof AnonymousAuthenticationToken)) {
+				session.setAttribute(HttpSessionContextIntegrationFilter.ACEGI_SECURITY_CONTEXT_KEY,
+						SecurityContextHolder.getContext());
+				KeycloakSessionIndex.bind(session, authentication);
+			}
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.SEVERE, "Login completion failed", e);
+			if (!claim.getAsBoolean()) {
+				return;
+			}
+		}
+		redirect(asyncContext);
+	}
+
+	private void redirect(AsyncContext asyncContext) {
+		try {
+			((HttpServletResponse) asyncContext.getResponse()).sendRedirect(target);
+		} catch (IOException | IllegalStateException e) {
+			LOGGER.log(Level.FINE, "Could not redirect after login", e);
+		} finally {
+			asyncContext.complete();
+		}
+	}
+
+	/**
+	 * Returns the number of logins currently being completed or waiting for it.
+	 *
+	 * @return int
+	 */
+	static int getPendingCount() {
+		return EXECUTOR.getActiveCount() + EXECUTOR.getQueue().size();
+	}
+}
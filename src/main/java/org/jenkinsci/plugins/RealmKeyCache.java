@@ -0,0 +1,268 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.PublicKey;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.rotation.PublicKeyLocator;
+import org.keycloak.jose.jwk.JSONWebKeySet;
+import org.keycloak.jose.jwk.JWK;
+import org.keycloak.util.JWKSUtils;
+import org.keycloak.util.JsonSerialization;
+
+import hudson.security.SecurityRealm;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Caches the signing keys of the realm by key id. The keys are prefetched in
+ * the background, so token verification on the login or request path normally
+ * never waits for the JWKS endpoint.
+ *
+ * An unknown key id triggers exactly one fetch, concurrent lookups wait for it.
+ * Keys removed from the realm stay usable for a grace period, so tokens signed
+ * before a key rotation can still be verified.
+ *
+ * @author dev.lauer@elnarion.de
+ *
+ */
+public class RealmKeyCache implements PublicKeyLocator {
+
+	private static final Logger LOGGER = Logger.getLogger(RealmKeyCache.class.getName());
+
+	private static final String PROPERTY_PREFIX = RealmKeyCache.class.getName();
+
+	/**
+	 * Minutes between two background fetches of the realm keys.
+	 */
+	static final int PREFETCH_MINUTES = Math.max(1, Integer.getInteger(PROPERTY_PREFIX + ".prefetchMinutes", 10));
+
+	/**
+	 * Minutes a key removed from the realm is still accepted.
+	 */
+	static final int GRACE_MINUTES = Integer.getInteger(PROPERTY_PREFIX + ".graceMinutes", 60);
+
+	private volatile Map<String, PublicKey> currentKeys = Collections.emptyMap();
+
+	private final ConcurrentMap<String, RetiredKey> retiredKeys = new ConcurrentHashMap<>();
+
+	private final Object fetchLock = new Object();
+
+	private volatile long lastFetch;
+
+	private volatile ScheduledFuture<?> prefetch;
+
+	private boolean prefetched;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong fetches = new AtomicLong();
+
+	@Override
+	public PublicKey getPublicKey(String kid, KeycloakDeployment deployment) {
+		PublicKey key = lookup(kid);
+		if (key != null) {
+			hits.incrementAndGet();
+			return key;
+		}
+		misses.incrementAndGet();
+		synchronized (fetchLock) {
+			// a concurrent lookup may have fetched the key while we were waiting
+			key = lookup(kid);
+			if (key != null) {
+				return key;
+			}
+			long minTimeBetweenRequests = TimeUnit.SECONDS.toMillis(deployment.getMinTimeBetweenJwksRequests());
+			if (System.currentTimeMillis() - lastFetch < minTimeBetweenRequests) {
+				LOGGER.log(Level.FINE, "Unknown key id {0}, realm keys were fetched recently", kid);
+				return null;
+			}
+			try {
+				fetch(deployment);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Fetching the realm keys failed", e);
+				return null;
+			}
+			return lookup(kid);
+		}
+	}
+
+	@Override
+	public void reset(KeycloakDeployment deployment) {
+		synchronized (fetchLock) {
+			try {
+				fetch(deployment);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Fetching the realm keys failed", e);
+			}
+		}
+	}
+
+	private PublicKey lookup(String kid) {
+		return lookup(kid, System.currentTimeMillis());
+	}
+
+	/**
+	 * Returns the cached key with the given id, without fetching.
+	 *
+	 * @param kid
+	 *            the key id, null for tokens without key id
+	 * @param now
+	 *            the time to check retired keys against in epoch milliseconds
+	 * @return {@link PublicKey} the key, null if it is unknown or retired too long
+	 *         ago
+	 */
+	PublicKey lookup(String kid, long now) {
+		Map<String, PublicKey> keys = currentKeys;
+		if (kid == null) {
+			// tokens without key id can only be verified if the realm has a single key
+			return keys.size() == 1 ? keys.values().iterator().next() : null;
+		}
+		PublicKey key = keys.get(kid);
+		if (key == null) {
+			RetiredKey retired = retiredKeys.get(kid);
+			if (retired != null && !retired.isExpired(now)) {
+				key = retired.key;
+			}
+		}
+		return key;
+	}
+
+	private void fetch(KeycloakDeployment deployment) throws IOException {
+		String jwksUrl = deployment.getJwksUrl();
+		LOGGER.log(Level.FINE, "Fetching realm keys from {0}", jwksUrl);
+		fetches.incrementAndGet();
+		lastFetch = System.currentTimeMillis();
+		HttpGet get = new HttpGet(jwksUrl);
+		get.addHeader("Accept", "application/json");
+		HttpResponse response = deployment.getClient().execute(get);
+		HttpEntity entity = response.getEntity();
+		int status = response.getStatusLine().getStatusCode();
+		if (status != 200) {
+			EntityUtils.consumeQuietly(entity);
+			throw new IOException("Unexpected status " + status + " from " + jwksUrl);
+		}
+		JSONWebKeySet jwks;
+		try (InputStream is = entity.getContent()) {
+			jwks = JsonSerialization.readValue(is, JSONWebKeySet.class);
+		}
+		Map<String, PublicKey> fetched = JWKSUtils.getKeysForUse(jwks, JWK.Use.SIG);
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, PublicKey> entry : currentKeys.entrySet()) {
+			if (!fetched.containsKey(entry.getKey())) {
+				retiredKeys.putIfAbsent(entry.getKey(), new RetiredKey(entry.getValue(), now));
+			}
+		}
+		for (Iterator<Map.Entry<String, RetiredKey>> it = retiredKeys.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, RetiredKey> entry = it.next();
+			if (fetched.containsKey(entry.getKey()) || entry.getValue().isExpired(now)) {
+				it.remove();
+			}
+		}
+		currentKeys = Collections.unmodifiableMap(new HashMap<>(fetched));
+	}
+
+	/**
+	 * Starts the background prefetch of the realm keys. The first fetch runs
+	 * right away, so it has to be called once the deployment is published.
+	 *
+	 * @param deployment
+	 *            the {@link KeycloakDeployment} whose keys are cached
+	 */
+	void start(KeycloakDeployment deployment) {
+		prefetch = Timer.get().scheduleWithFixedDelay(() -> prefetch(deployment), 0, PREFETCH_MINUTES,
+				TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Stops the background prefetch of the realm keys.
+	 */
+	void stop() {
+		ScheduledFuture<?> running = prefetch;
+		if (running != null) {
+			running.cancel(false);
+		}
+	}
+
+	private void prefetch(KeycloakDeployment deployment) {
+		// the first run fetches the keys of the deployment just published, later runs
+		// stop once the realm no longer uses this cache
+		if (prefetched && !isInUse()) {
+			stop();
+			return;
+		}
+		prefetched = true;
+		synchronized (fetchLock) {
+			try {
+				fetch(deployment);
+			} catch (IOException | RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Prefetching the realm keys failed", e);
+			}
+		}
+	}
+
+	private boolean isInUse() {
+		Jenkins j = Jenkins.getInstanceOrNull();
+		SecurityRealm sr = j == null ? null : j.getSecurityRealm();
+		return sr instanceof KeycloakSecurityRealm && ((KeycloakSecurityRealm) sr).usesKeyCache(this);
+	}
+
+	/**
+	 * Returns the number of key lookups answered from the cache.
+	 *
+	 * @return long
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of key lookups not found in the cache.
+	 *
+	 * @return long
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of requests sent to the JWKS endpoint.
+	 *
+	 * @return long
+	 */
+	public long getFetchCount() {
+		return fetches.get();
+	}
+
+	private static final class RetiredKey {
+		private final PublicKey key;
+		private final long retiredAt;
+
+		private RetiredKey(PublicKey key, long retiredAt) {
+			this.key = key;
+			this.retiredAt = retiredAt;
+		}
+
+		private boolean isExpired(long now) {
+			return now - retiredAt > TimeUnit.MINUTES.toMillis(GRACE_MINUTES);
+		}
+	}
+}
@@ -1,8 +1,8 @@
 package org.jenkinsci.plugins;
 
 import java.io.IOException;
-import java.util.Calendar;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,9 +20,7 @@ import org.acegisecurity.Authentication;
 import org.acegisecurity.context.SecurityContext;
 import org.acegisecurity.context.SecurityContextHolder;
 import org.keycloak.adapters.KeycloakDeployment;
-import org.keycloak.adapters.ServerRequest;
 import org.keycloak.adapters.ServerRequest.HttpFailure;
-import org.keycloak.representations.AccessTokenResponse;
 
 import hudson.security.SecurityRealm;
 import jenkins.model.Jenkins;
@@ -53,7 +51,7 @@ public class RefreshFilter implements Filter {
 	private boolean skipUrl(HttpServletRequest paramRequest) {
 		boolean result = false;
 		String pathInfo = paramRequest.getPathInfo();
-		LOGGER.log(Level.FINEST, "Path" + pathInfo);
+		LOGGER.log(Level.FINEST, "Path {0}", pathInfo);
 		if (pathInfo != null) {
 			result = (pathInfo.endsWith("/logout"))
 					|| pathInfo.endsWith(KeycloakSecurityRealm.JENKINS_FINISH_LOGIN_URL);
@@ -65,91 +63,163 @@ public class RefreshFilter implements Filter {
 	public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
 			throws IOException, ServletException {
 		LOGGER.log(Level.FINER, "KeycloakFilter entered");
-		Jenkins j = Jenkins.getActiveInstance();
-		if (j != null) {
-			SecurityRealm sr = j.getSecurityRealm();
-			if (sr != null) {
-				// only if an instance of KeycloakSecurityRealm is active check token validity
-				if (sr instanceof KeycloakSecurityRealm) {
-					KeycloakSecurityRealm ksr = (KeycloakSecurityRealm) sr;
-					LOGGER.log(Level.FINER, "KeycloakSecurityRealm found");
-					boolean checkTokenValidity = ksr.checkKeycloakOnEachRequest();
-					HttpServletRequest httpRequest = (HttpServletRequest) req;
-					HttpSession session = httpRequest.getSession();
-					Boolean authRequestedAttribute = (Boolean) session
-							.getAttribute(KeycloakSecurityRealm.AUTH_REQUESTED);
-					boolean authenticationRequested = (authRequestedAttribute == null) ? false
-							: authRequestedAttribute.booleanValue();
-					boolean skipUrl = skipUrl(httpRequest);
-					LOGGER.log(Level.FINEST,
-							"RequestPath" + httpRequest.getPathInfo() + " skipUrl" + skipUrl
-									+ " AuthenticationRequested" + authenticationRequested + " CheckRequest"
-									+ checkTokenValidity);
-					// only if a check is configured and the user already logged in and the
-					// requested URL does not end with logout do filtering
-					if (checkTokenValidity && !skipUrl && authenticationRequested) {
-						boolean tokeninvalid = checkTokenValidity(res, ksr);
-						if (tokeninvalid)
-							return;
-					}
-					// normal processing
-					chain.doFilter(req, res);
+		Jenkins j = Jenkins.getInstanceOrNull();
+		SecurityRealm sr = j == null ? null : j.getSecurityRealm();
+		// only if an instance of KeycloakSecurityRealm is active check token validity
+		if (!(sr instanceof KeycloakSecurityRealm)) {
+			// the realm was replaced without saving the configuration
+			KeycloakFilterRegistration.update();
+			chain.doFilter(req, res);
+			return;
+		}
+		long start = System.nanoTime();
+		KeycloakSecurityRealm ksr = (KeycloakSecurityRealm) sr;
+		LOGGER.log(Level.FINER, "KeycloakSecurityRealm found");
+		boolean checkTokenValidity = ksr.checkKeycloakOnEachRequest();
+		HttpServletRequest httpRequest = (HttpServletRequest) req;
+		// never create a session here, anonymous requests (static resources,
+		// webhooks, agents) must not allocate one just to be checked
+		HttpSession session = checkTokenValidity ? httpRequest.getSession(false) : null;
+		Boolean authRequestedAttribute = (session == null) ? null
+				: (Boolean) session.getAttribute(KeycloakSecurityRealm.AUTH_REQUESTED);
+		boolean authenticationRequested = (authRequestedAttribute == null) ? false
+				: authRequestedAttribute.booleanValue();
+		// only if a check is configured and the user already logged in and the
+		// requested URL does not end with logout do filtering
+		if (checkTokenValidity && authenticationRequested) {
+			boolean skipUrl = skipUrl(httpRequest);
+			if (LOGGER.isLoggable(Level.FINEST)) {
+				LOGGER.log(Level.FINEST,
+						"RequestPath" + httpRequest.getPathInfo() + " skipUrl" + skipUrl
+								+ " AuthenticationRequested" + authenticationRequested + " CheckRequest"
+								+ checkTokenValidity);
+			}
+			if (!skipUrl) {
+				boolean tokeninvalid = checkTokenValidity(res, ksr);
+				if (tokeninvalid) {
+					KeycloakMetrics.get().record(KeycloakMetrics.Operation.FILTER, start);
+					return;
 				}
 			}
 		}
+		KeycloakMetrics.get().record(KeycloakMetrics.Operation.FILTER, start);
+		// normal processing
+		chain.doFilter(req, res);
 	}
 
 	private boolean checkTokenValidity(ServletResponse res, KeycloakSecurityRealm ksr) throws IOException {
 		boolean tokeninvalid = false;
 		LOGGER.log(Level.FINE, "KeycloakFilter is active");
-		KeycloakDeployment kd = ksr.getKeycloakDeployment();
 		SecurityContext sc = SecurityContextHolder.getContext();
 		if (sc != null) {
 			Authentication auth = sc.getAuthentication();
 			if (auth instanceof KeycloakAuthentication) {
 				KeycloakAuthentication ka = (KeycloakAuthentication) auth;
+				KeycloakDeployment kd = ksr.getKeycloakDeployment(ka);
 				// if the refreshToken is already expired, it can not be used anymore
 				// so automatically log out
-				if (ka.isRefreshExpired()) {
-					LOGGER.log(Level.FINE,
-							"Keycloak refresh token is expired. Refresh token expiry "
-									+ ka.getAccessTokenResponse().getRefreshExpiresIn() + " seconds. Last refresh "
-									+ ka.getLastRefresh() + ". Current Time " + new Date());
+				long now = System.currentTimeMillis();
+				if (ka.isRefreshExpired(now)) {
+					if (LOGGER.isLoggable(Level.FINE)) {
+						LOGGER.log(Level.FINE,
+								"Keycloak refresh token is expired. Refresh token expiry "
+										+ new Date(ka.getRefreshExpiresAt()) + ". Last refresh "
+										+ ka.getLastRefresh() + ". Current Time " + new Date());
+					}
 					tokeninvalid = true;
-					redirectToJenkinsLogoutUrl(res);
+					redirectToJenkinsLogoutUrl(res, ka, KeycloakMetrics.LogoutReason.REFRESH_EXPIRED);
+					return tokeninvalid;
 				}
 				try {
+					// read the refresh token before the expiry state, so a refresh finished by a
+					// concurrent request in between is detected by the refresher
+					String observedRefreshToken = ka.getRefreshToken();
 					boolean respectAccessTokenTimeout = ksr.respectAccessTokenTimeout();
-					Calendar secondsCheck = Calendar.getInstance();
-					secondsCheck.add(Calendar.SECOND, -1);
-					boolean newRefresh = secondsCheck.after(ka.getLastRefreshDateAsCalendar());
-					boolean accessTokenExpired = ka.isAccessExpired();
-					// if the access token timeout should be respected and it is expired then
-					// refresh it
-					// or
-					// if the access token timeout should not be respected, but the last refresh is
-					// older than 1 second then refresh it.
-					if ((respectAccessTokenTimeout && accessTokenExpired)
-							|| (!respectAccessTokenTimeout && newRefresh)) {
-						LOGGER.log(Level.FINE,
-								"KeycloakFilter refresh token. Respect access token timeout: "
-										+ respectAccessTokenTimeout + ". Access token expired " + accessTokenExpired
-										+ ". Renew after 1 second:" + newRefresh);
-						AccessTokenResponse atr = ServerRequest.invokeRefresh(kd, ka.getRefreshToken());
-						ka.setAccessTokenResponse(atr);
+					boolean validateLocally = ksr.validateTokenLocally();
+					if (respectAccessTokenTimeout || validateLocally) {
+						TokenRefreshScheduler.get().track(ka);
+					}
+					boolean newRefresh = now > refreshDueAt(ka,
+							TimeUnit.SECONDS.toMillis(ksr.getKeycloakMinRefreshInterval()));
+					boolean accessTokenExpired = ka.isAccessExpired(now);
+					boolean refresh;
+					if (validateLocally) {
+						// verify the token with the realm keys, keycloak is only contacted after
+						// the access token expired
+						refresh = accessTokenExpired || !ka.verifyAccessToken(kd);
+					} else {
+						// if the access token timeout should be respected and it is expired then
+						// refresh it
+						// or
+						// if the access token timeout should not be respected, but the last refresh is
+						// older than 1 second then refresh it.
+						refresh = (respectAccessTokenTimeout && accessTokenExpired)
+								|| (!respectAccessTokenTimeout && newRefresh);
+					}
+					if (refresh) {
+						if (LOGGER.isLoggable(Level.FINE)) {
+							LOGGER.log(Level.FINE,
+									"KeycloakFilter refresh token. Respect access token timeout: "
+											+ respectAccessTokenTimeout + ". Validate locally: " + validateLocally
+											+ ". Access token expired " + accessTokenExpired
+											+ ". Minimum refresh interval passed: " + newRefresh);
+						}
+						TokenRefresher.get().refresh(kd, ka, observedRefreshToken);
 					}
 				} catch (HttpFailure e) {
 					LOGGER.log(Level.INFO, "Refresh Token failed, message is: " + e.getMessage() + ", error is:"
 							+ e.getError() + ", statuscode is:" + e.getStatus());
-					tokeninvalid = true;
-					redirectToJenkinsLogoutUrl(res);
+					if (KeycloakCircuitBreaker.isTransient(e)) {
+						tokeninvalid = !continueOnStaleToken(res, ksr, ka, now);
+					} else {
+						tokeninvalid = true;
+						redirectToJenkinsLogoutUrl(res, ka, KeycloakMetrics.LogoutReason.REFRESH_FAILED);
+					}
+				} catch (RefreshRateLimiter.LimitedException e) {
+					// a local throttle says nothing about the session, the next request
+					// retries the refresh
+					LOGGER.log(Level.FINE, "Refresh rate limit reached, continue on the current token");
+				} catch (IOException e) {
+					LOGGER.log(Level.FINE, "Keycloak is not available, message is: {0}", e.getMessage());
+					tokeninvalid = !continueOnStaleToken(res, ksr, ka, now);
 				}
 			}
 		}
 		return tokeninvalid;
 	}
 
-	private void redirectToJenkinsLogoutUrl(ServletResponse res) throws IOException {
+	/**
+	 * Returns the time from which a session is refreshed if the access token
+	 * timeout is not respected. A per session offset of up to a quarter of the
+	 * interval keeps sessions which logged in together from refreshing together.
+	 */
+	static long refreshDueAt(KeycloakAuthentication ka, long intervalMillis) {
+		long jitter = Math.floorMod(System.identityHashCode(ka), intervalMillis / 4 + 1);
+		return ka.getLastRefreshMillis() + intervalMillis + jitter;
+	}
+
+	/**
+	 * Lets the session continue on its current token while keycloak is not
+	 * available, as long as the access token did not expire longer ago than the
+	 * configured staleness bound.
+	 */
+	private boolean continueOnStaleToken(ServletResponse res, KeycloakSecurityRealm ksr, KeycloakAuthentication ka,
+			long now) throws IOException {
+		long staleness = now - ka.getAccessExpiresAt();
+		if (staleness <= TimeUnit.SECONDS.toMillis(ksr.getKeycloakMaxTokenStaleness())) {
+			LOGGER.log(Level.FINE, "Keycloak is not available, continue session of {0} on its current token",
+					ka.getName());
+			return true;
+		}
+		LOGGER.log(Level.INFO, "Keycloak is not available and the token of {0} is stale, logout", ka.getName());
+		redirectToJenkinsLogoutUrl(res, ka, KeycloakMetrics.LogoutReason.KEYCLOAK_UNAVAILABLE);
+		return false;
+	}
+
+	private void redirectToJenkinsLogoutUrl(ServletResponse res, KeycloakAuthentication ka,
+			KeycloakMetrics.LogoutReason reason) throws IOException {
+		KeycloakMetrics.get().forcedLogout(reason);
+		AuthAuditLog.get().record(AuthAuditLog.EventType.FORCED_LOGOUT, ka, KeycloakMetrics.name(reason));
 		//reset everything done before and redirect
 		res.reset();
 		Jenkins j = Jenkins.getActiveInstance();
@@ -159,7 +229,7 @@ public class RefreshFilter implements Filter {
 		if (rootURL == null)
 			rootURL = "";
 		String redirectURL = rootURL + "logout";
-		LOGGER.log(Level.INFO, "Redirect to " + redirectURL);
+		LOGGER.log(Level.INFO, "Redirect to {0}", redirectURL);
 		httpRes.sendRedirect(redirectURL);
 	}
 
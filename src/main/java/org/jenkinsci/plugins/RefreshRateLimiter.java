@@ -0,0 +1,94 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * JVM wide token bucket capping the token refresh calls sent to keycloak. A
+ * refresh which finds the bucket empty is not sent, the session continues on
+ * its current token instead.
+ *
+ * The bucket is kept as the time at which it is full again, so taking a
+ * permit is a single compare and set without any lock.
+ *
+ * @author dev.lauer@elnarion.de
+ *
+ */
+final class RefreshRateLimiter {
+
+	private static final String PROPERTY_PREFIX = RefreshRateLimiter.class.getName();
+
+	/**
+	 * Refresh calls per second the bucket refills, 0 or less disables the limit.
+	 */
+	static final int REFRESHES_PER_SECOND = Integer.getInteger(PROPERTY_PREFIX + ".refreshesPerSecond", 50);
+
+	/**
+	 * Refresh calls which may be sent at once after a quiet period.
+	 */
+	static final int BURST = Math.max(1, Integer.getInteger(PROPERTY_PREFIX + ".burst", Math.max(1, REFRESHES_PER_SECOND)));
+
+	private static final RefreshRateLimiter INSTANCE = new RefreshRateLimiter(REFRESHES_PER_SECOND, BURST);
+
+	private final long nanosPerPermit;
+
+	private final long burstNanos;
+
+	// the time at which the bucket is full again, in System.nanoTime()
+	private final AtomicLong fullAt;
+
+	/**
+	 * Constructor
+	 *
+	 * @param permitsPerSecond the refill rate, 0 or less for no limit
+	 * @param burst the bucket size
+	 */
+	RefreshRateLimiter(int permitsPerSecond, int burst) {
+		this.nanosPerPermit = permitsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / permitsPerSecond : 0;
+		this.burstNanos = nanosPerPermit * burst;
+		this.fullAt = new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	 * Returns the JVM wide limiter instance.
+	 *
+	 * @return {@link RefreshRateLimiter}
+	 */
+	static RefreshRateLimiter get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Takes a permit if one is available.
+	 *
+	 * @return boolean - false if the bucket is empty
+	 */
+	boolean tryAcquire() {
+		if (nanosPerPermit == 0) {
+			return true;
+		}
+		while (true) {
+			long now = System.nanoTime();
+			long current = fullAt.get();
+			long next = Math.max(current - now, 0) + nanosPerPermit;
+			if (next > burstNanos) {
+				return false;
+			}
+			if (fullAt.compareAndSet(current, now + next)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Thrown instead of calling keycloak while the bucket is empty.
+	 */
+	static final class LimitedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		LimitedException() {
+			super("Token refresh rate limit reached");
+		}
+	}
+}
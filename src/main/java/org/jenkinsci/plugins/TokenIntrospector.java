@@ -0,0 +1,194 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.authentication.ClientCredentialsProviderUtils;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.util.JsonSerialization;
+import org.keycloak.util.TokenUtil;
+
+/**
+ * Authenticates opaque and offline tokens, which can not be verified locally,
+ * with the token introspection endpoint of the realm. Only active access and
+ * offline tokens issued for the client of the deployment are accepted.
+ *
+ * Introspection results, active and inactive ones, are cached for a
+ * configurable window, so each token is introspected at most once per window.
+ * Active tokens are never cached beyond their expiry. Concurrent requests with
+ * the same token share one introspection call.
+ *
+ * @author dev.lauer@elnarion.de
+ *
+ */
+public final class TokenIntrospector {
+
+	private static final Logger LOGGER = Logger.getLogger(TokenIntrospector.class.getName());
+
+	private static final String PROPERTY_PREFIX = TokenIntrospector.class.getName();
+
+	/**
+	 * Maximum number of introspection results kept in the cache.
+	 */
+	static final int CACHE_SIZE = Math.max(1, Integer.getInteger(PROPERTY_PREFIX + ".cacheSize", 10000));
+
+	/**
+	 * Seconds an introspection result is cached.
+	 */
+	static final int CACHE_SECONDS = Integer.getInteger(PROPERTY_PREFIX + ".cacheSeconds", 60);
+
+	private static final TokenIntrospector INSTANCE = new TokenIntrospector();
+
+	private final ExpiringLruCache<String, Result> results = new ExpiringLruCache<>(CACHE_SIZE);
+
+	private final AtomicLong introspections = new AtomicLong();
+
+	private TokenIntrospector() {
+	}
+
+	/**
+	 * Returns the JVM wide introspector instance.
+	 *
+	 * @return {@link TokenIntrospector}
+	 */
+	public static TokenIntrospector get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Authenticates the given token.
+	 *
+	 * @param deployment
+	 *            the {@link KeycloakDeployment} providing the introspection
+	 *            endpoint and client credentials
+	 * @param token
+	 *            the token presented by the client
+	 * @return {@link KeycloakAuthentication} for an active access token of the
+	 *         client, null otherwise
+	 * @throws IOException
+	 *             if the introspection endpoint could not be reached
+	 */
+	public KeycloakAuthentication authenticate(final KeycloakDeployment deployment, final String token)
+			throws IOException {
+		long now = System.currentTimeMillis();
+		// the same token may be presented to deployments of different realms or to
+		// different clients of one realm, which do not accept each other's tokens
+		String key = deployment.getTokenIntrospectionUrl() + ' ' + deployment.getResourceName() + ' '
+				+ BearerTokenFilter.hash(token);
+		Result result = results.get(key, now, new ExpiringLruCache.Loader<Result>() {
+			@Override
+			public Result load() throws IOException {
+				return introspect(deployment, token);
+			}
+
+			@Override
+			public long expiresAt(Result value) {
+				long expiresAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(CACHE_SECONDS);
+				long tokenExpiresAt = value.authentication == null ? 0 : value.authentication.getAccessExpiresAt();
+				return tokenExpiresAt > 0 ? Math.min(expiresAt, tokenExpiresAt) : expiresAt;
+			}
+		});
+		return result.authentication;
+	}
+
+	private Result introspect(KeycloakDeployment deployment, String token) throws IOException {
+		introspections.incrementAndGet();
+		String url = deployment.getTokenIntrospectionUrl();
+		HttpPost post = new HttpPost(url);
+		List<NameValuePair> formparams = new ArrayList<>();
+		formparams.add(new BasicNameValuePair("token", token));
+		ClientCredentialsProviderUtils.setClientCredentials(deployment, post, formparams);
+		post.setEntity(new UrlEncodedFormEntity(formparams, "UTF-8"));
+		AccessToken introspected;
+		try (KeycloakHttpTransport.Call call = KeycloakHttpTransport.begin(deployment)) {
+			HttpResponse response = deployment.getClient().execute(post);
+			HttpEntity entity = response.getEntity();
+			int status = response.getStatusLine().getStatusCode();
+			if (status != 200) {
+				EntityUtils.consumeQuietly(entity);
+				throw new IOException("Unexpected status " + status + " from " + url);
+			}
+			try (InputStream is = entity.getContent()) {
+				introspected = JsonSerialization.readValue(is, AccessToken.class);
+			}
+		}
+		// "active" and "username" are no access token claims and end up in the other
+		// claims
+		if (!Boolean.TRUE.equals(introspected.getOtherClaims().get("active"))) {
+			LOGGER.log(Level.FINE, "Introspected token is not active");
+			return Result.INACTIVE;
+		}
+		// refresh and ID tokens are active as well, but no API credentials
+		if (!TokenUtil.TOKEN_TYPE_BEARER.equals(introspected.getType())
+				&& !TokenUtil.TOKEN_TYPE_OFFLINE.equals(introspected.getType())) {
+			LOGGER.log(Level.FINE, "Introspected token is of type {0}", introspected.getType());
+			return Result.INACTIVE;
+		}
+		String resource = deployment.getResourceName();
+		if (!resource.equals(introspected.getOtherClaims().get("client_id"))
+				&& !AccessTokenVerifier.isIssuedFor(introspected, resource)) {
+			LOGGER.log(Level.FINE, "Introspected token is not issued for {0}", resource);
+			return Result.INACTIVE;
+		}
+		if (introspected.getPreferredUsername() == null) {
+			Object username = introspected.getOtherClaims().get("username");
+			if (username == null) {
+				LOGGER.log(Level.FINE, "Introspected token has no username");
+				return Result.INACTIVE;
+			}
+			introspected.setPreferredUsername(username.toString());
+		}
+		return new Result(new KeycloakAuthentication(introspected));
+	}
+
+	/**
+	 * Returns the number of cached introspection results.
+	 *
+	 * @return int
+	 */
+	public int getCacheSize() {
+		return results.size();
+	}
+
+	/**
+	 * Returns the share of authentications answered from the cache.
+	 *
+	 * @return double - between 0 and 1
+	 */
+	public double getCacheHitRatio() {
+		return results.getHitRatio();
+	}
+
+	/**
+	 * Returns the number of calls sent to the introspection endpoint.
+	 *
+	 * @return long
+	 */
+	public long getIntrospectionCount() {
+		return introspections.get();
+	}
+
+	private static final class Result {
+		private static final Result INACTIVE = new Result(null);
+
+		private final KeycloakAuthentication authentication;
+
+		private Result(KeycloakAuthentication authentication) {
+			this.authentication = authentication;
+		}
+	}
+}
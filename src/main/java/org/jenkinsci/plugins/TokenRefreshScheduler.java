@@ -0,0 +1,195 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.keycloak.adapters.ServerRequest.HttpFailure;
+
+import hudson.security.SecurityRealm;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+/**
+ * Refreshes the tokens of active sessions in the background before the access
+ * token expires, so the request path normally finds an already fresh token.
+ *
+ * A session is scheduled the first time the {@link RefreshFilter} sees it and
+ * is rescheduled after each refresh. Sessions without a request for longer than
+ * the idle timeout drop out of the schedule and are refreshed inline again on
+ * their next request.
+ *
+ * @author dev.lauer@elnarion.de
+ *
+ */
+public final class TokenRefreshScheduler {
+
+	private static final Logger LOGGER = Logger.getLogger(TokenRefreshScheduler.class.getName());
+
+	private static final String PROPERTY_PREFIX = TokenRefreshScheduler.class.getName();
+
+	/**
+	 * Whether sessions are refreshed in the background at all.
+	 */
+	static final boolean ENABLED = Boolean
+			.parseBoolean(System.getProperty(PROPERTY_PREFIX + ".enabled", "true"));
+
+	/**
+	 * Number of worker threads used for background refreshes.
+	 */
+	static final int POOL_SIZE = Math.max(1, Integer.getInteger(PROPERTY_PREFIX + ".poolSize", 2));
+
+	/**
+	 * Percentage of the access token lifetime after which a session is refreshed.
+	 */
+	static final int REFRESH_PERCENT = Integer.getInteger(PROPERTY_PREFIX + ".refreshPercent", 80);
+
+	/**
+	 * Maximum random delay in percent of the access token lifetime, added so that
+	 * sessions which logged in together are not refreshed at the same moment.
+	 */
+	static final int JITTER_PERCENT = Integer.getInteger(PROPERTY_PREFIX + ".jitterPercent", 10);
+
+	/**
+	 * Minutes without a request after which a session is no longer refreshed in
+	 * the background.
+	 */
+	static final int IDLE_MINUTES = Integer.getInteger(PROPERTY_PREFIX + ".idleMinutes", 15);
+
+	private static final TokenRefreshScheduler INSTANCE = new TokenRefreshScheduler();
+
+	private final ScheduledThreadPoolExecutor executor;
+
+	private final AtomicInteger scheduledSessions = new AtomicInteger();
+
+	private TokenRefreshScheduler() {
+		executor = new ScheduledThreadPoolExecutor(POOL_SIZE,
+				new NamingThreadFactory(new DaemonThreadFactory(), "Keycloak token refresh"));
+		executor.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Returns the JVM wide scheduler instance.
+	 *
+	 * @return {@link TokenRefreshScheduler}
+	 */
+	public static TokenRefreshScheduler get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Records a request of the given session and schedules its background
+	 * refresh if it is not scheduled yet.
+	 *
+	 * @param ka
+	 *            the {@link KeycloakAuthentication} of the current request
+	 */
+	public void track(KeycloakAuthentication ka) {
+		if (!ENABLED) {
+			return;
+		}
+		ka.markAccessed(System.currentTimeMillis());
+		if (!ka.isRefreshScheduled() && ka.claimRefreshSchedule()) {
+			scheduledSessions.incrementAndGet();
+			schedule(ka);
+		}
+	}
+
+	private void schedule(KeycloakAuthentication ka) {
+		long refreshAt = refreshAt(ka);
+		if (refreshAt < 0) {
+			drop(ka);
+			return;
+		}
+		long delay = Math.max(0, refreshAt - System.currentTimeMillis());
+		executor.schedule(() -> refresh(ka), delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns the time of the next background refresh of the given session, after
+	 * the configured share of the access token lifetime plus a random jitter.
+	 *
+	 * @param ka
+	 *            the {@link KeycloakAuthentication}
+	 * @return long the time in epoch milliseconds, -1 if the access token has no
+	 *         lifetime left
+	 */
+	static long refreshAt(KeycloakAuthentication ka) {
+		long lastRefresh = ka.getLastRefreshMillis();
+		long lifetime = ka.getAccessExpiresAt() - lastRefresh;
+		if (lifetime <= 0) {
+			return -1;
+		}
+		long refreshAt = lastRefresh + lifetime * REFRESH_PERCENT / 100;
+		long jitter = lifetime * JITTER_PERCENT / 100;
+		if (jitter > 0) {
+			refreshAt += ThreadLocalRandom.current().nextLong(jitter);
+		}
+		return refreshAt;
+	}
+
+	/**
+	 * Returns whether the given session had no request for longer than the idle
+	 * timeout.
+	 *
+	 * @param ka
+	 *            the {@link KeycloakAuthentication}
+	 * @param now
+	 *            the time to check in epoch milliseconds
+	 * @return boolean
+	 */
+	static boolean isIdle(KeycloakAuthentication ka, long now) {
+		return now - ka.getLastAccess() > TimeUnit.MINUTES.toMillis(IDLE_MINUTES);
+	}
+
+	private void refresh(KeycloakAuthentication ka) {
+		if (isIdle(ka, System.currentTimeMillis()) || ka.isRefreshExpired()) {
+			LOGGER.log(Level.FINE, "Session of {0} is idle, stop background refresh", ka.getName());
+			drop(ka);
+			return;
+		}
+		KeycloakSecurityRealm ksr = activeRealm();
+		if (ksr == null || !ksr.checkKeycloakOnEachRequest()
+				|| !(ksr.respectAccessTokenTimeout() || ksr.validateTokenLocally())) {
+			drop(ka);
+			return;
+		}
+		try {
+			TokenRefresher.get().refresh(ksr.getKeycloakDeployment(ka), ka, ka.getRefreshToken());
+		} catch (IOException | HttpFailure | RuntimeException e) {
+			// the request path notices the failure on the next request and handles it
+			LOGGER.log(Level.FINE, "Background token refresh failed for {0}: {1}", new Object[] { ka.getName(), e });
+			drop(ka);
+			return;
+		}
+		schedule(ka);
+	}
+
+	private void drop(KeycloakAuthentication ka) {
+		ka.releaseRefreshSchedule();
+		scheduledSessions.decrementAndGet();
+	}
+
+	private static KeycloakSecurityRealm activeRealm() {
+		Jenkins j = Jenkins.getInstanceOrNull();
+		if (j == null) {
+			return null;
+		}
+		SecurityRealm sr = j.getSecurityRealm();
+		return sr instanceof KeycloakSecurityRealm ? (KeycloakSecurityRealm) sr : null;
+	}
+
+	/**
+	 * Returns the number of sessions currently refreshed in the background.
+	 *
+	 * @return int
+	 */
+	public int getScheduledSessionCount() {
+		return scheduledSessions.get();
+	}
+}
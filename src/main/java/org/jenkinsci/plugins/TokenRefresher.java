@@ -0,0 +1,204 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.ServerRequest;
+import org.keycloak.adapters.ServerRequest.HttpFailure;
+import org.keycloak.representations.AccessTokenResponse;
+
+/**
+ * Coalesces token refreshes so that only one refresh per refresh token is in
+ * flight at any time. Concurrent callers holding the same refresh token wait
+ * for the running refresh and reuse its result instead of calling Keycloak
+ * again.
+ *
+ * @author dev.lauer@elnarion.de
+ *
+ */
+public final class TokenRefresher {
+
+	private static final Logger LOGGER = Logger.getLogger(TokenRefresher.class.getName());
+
+	private static final TokenRefresher INSTANCE = new TokenRefresher();
+
+	private final ConcurrentMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+	private final AtomicLong refreshCount = new AtomicLong();
+
+	private final AtomicLong coalescedCount = new AtomicLong();
+
+	private TokenRefresher() {
+	}
+
+	/**
+	 * Returns the JVM wide refresher instance.
+	 *
+	 * @return {@link TokenRefresher}
+	 */
+	public static TokenRefresher get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Refreshes the tokens of the given authentication. If a refresh for the
+	 * observed refresh token is already running, the caller waits for it and
+	 * reuses its result. If the authentication was refreshed in the meantime by
+	 * another request, its current access token is returned without contacting
+	 * Keycloak.
+	 *
+	 * @param kd
+	 *            the {@link KeycloakDeployment} to use for the refresh
+	 * @param ka
+	 *            the {@link KeycloakAuthentication} to refresh
+	 * @param observedRefreshToken
+	 *            the refresh token the caller saw when it decided to refresh
+	 * @return {@link String} the refreshed access token, also set on the
+	 *         authentication
+	 * @throws IOException
+	 *             if Keycloak could not be reached
+	 * @throws HttpFailure
+	 *             if Keycloak rejected the refresh
+	 */
+	public String refresh(KeycloakDeployment kd, KeycloakAuthentication ka, String observedRefreshToken)
+			throws IOException, HttpFailure {
+		if (observedRefreshToken == null) {
+			// nothing to coalesce on, let Keycloak reject the request as before
+			refreshCount.incrementAndGet();
+			AccessTokenResponse atr = invokeRefresh(kd, ka, null);
+			ka.setAccessTokenResponse(atr);
+			return atr.getToken();
+		}
+		CompletableFuture<String> mine = new CompletableFuture<>();
+		CompletableFuture<String> running = inFlight.putIfAbsent(observedRefreshToken, mine);
+		if (running != null) {
+			coalescedCount.incrementAndGet();
+			LOGGER.log(Level.FINE, "Joined running token refresh");
+			return await(running);
+		}
+		try {
+			if (!observedRefreshToken.equals(ka.getRefreshToken())) {
+				// another request already finished the refresh for this session
+				coalescedCount.incrementAndGet();
+				String current = ka.getAccessToken();
+				mine.complete(current);
+				return current;
+			}
+			refreshCount.incrementAndGet();
+			AccessTokenResponse atr = invokeRefresh(kd, ka, observedRefreshToken);
+			ka.setAccessTokenResponse(atr);
+			mine.complete(atr.getToken());
+			return atr.getToken();
+		} catch (IOException | HttpFailure | RuntimeException e) {
+			mine.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(observedRefreshToken, mine);
+		}
+	}
+
+	private static AccessTokenResponse invokeRefresh(KeycloakDeployment kd, KeycloakAuthentication ka,
+			String refreshToken) throws IOException, HttpFailure {
+		KeycloakMetrics metrics = KeycloakMetrics.get();
+		if (!RefreshRateLimiter.get().tryAcquire()) {
+			refreshed(metrics, ka, KeycloakMetrics.RefreshOutcome.RATE_LIMITED);
+			throw new RefreshRateLimiter.LimitedException();
+		}
+		KeycloakCircuitBreaker breaker = KeycloakCircuitBreaker.forDeployment(kd);
+		try {
+			breaker.acquire();
+		} catch (KeycloakCircuitBreaker.OpenException e) {
+			refreshed(metrics, ka, KeycloakMetrics.RefreshOutcome.CIRCUIT_OPEN);
+			throw e;
+		}
+		long start = System.nanoTime();
+		try (KeycloakHttpTransport.Call call = KeycloakHttpTransport.begin(kd)) {
+			AccessTokenResponse atr = ServerRequest.invokeRefresh(kd, refreshToken);
+			breaker.onSuccess();
+			refreshed(metrics, ka, KeycloakMetrics.RefreshOutcome.SUCCESS);
+			return atr;
+		} catch (HttpFailure e) {
+			if (KeycloakCircuitBreaker.isTransient(e)) {
+				breaker.onFailure();
+			} else {
+				// keycloak is up and rejected the token
+				breaker.onSuccess();
+			}
+			refreshed(metrics, ka, KeycloakMetrics.RefreshOutcome.HTTP_FAILURE);
+			throw e;
+		} catch (IOException | RuntimeException e) {
+			breaker.onFailure();
+			refreshed(metrics, ka, KeycloakMetrics.RefreshOutcome.IO_ERROR);
+			throw e;
+		} finally {
+			metrics.record(KeycloakMetrics.Operation.REFRESH, start);
+		}
+	}
+
+	private static void refreshed(KeycloakMetrics metrics, KeycloakAuthentication ka,
+			KeycloakMetrics.RefreshOutcome outcome) {
+		metrics.refreshed(outcome);
+		if (outcome == KeycloakMetrics.RefreshOutcome.SUCCESS) {
+			AuthAuditLog.get().record(AuthAuditLog.EventType.REFRESH, ka, null);
+		} else {
+			AuthAuditLog.get().record(AuthAuditLog.EventType.REFRESH_FAILURE, ka, KeycloakMetrics.name(outcome));
+		}
+	}
+
+	private static String await(CompletableFuture<String> running)
+			throws IOException, HttpFailure {
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for token refresh", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof HttpFailure) {
+				throw (HttpFailure) cause;
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Returns the number of refresh calls sent to Keycloak.
+	 *
+	 * @return long
+	 */
+	public long getRefreshCount() {
+		return refreshCount.get();
+	}
+
+	/**
+	 * Returns the number of refreshes which were saved because a concurrent
+	 * request already refreshed the same session.
+	 *
+	 * @return long
+	 */
+	public long getCoalescedRefreshCount() {
+		return coalescedCount.get();
+	}
+
+	/**
+	 * Returns the number of refreshes currently in flight.
+	 *
+	 * @return int
+	 */
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+}
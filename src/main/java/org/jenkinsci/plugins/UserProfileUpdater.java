@@ -0,0 +1,110 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.BulkChange;
+import hudson.model.User;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.tasks.Mailer;
+import jenkins.util.Timer;
+
+/**
+ * Copies the full name and e-mail address of a logged in user into the
+ * Jenkins user. Each login only compares the values, a change is written off
+ * the login thread after a short delay. Further changes of the same user
+ * within the delay are written together with a single save of the user
+ * configuration.
+ *
+ * @author dev.lauer@elnarion.de
+ *
+ */
+final class UserProfileUpdater {
+
+	private static final Logger LOGGER = Logger.getLogger(UserProfileUpdater.class.getName());
+
+	/**
+	 * Milliseconds a change waits for further changes of the same user before it
+	 * is saved.
+	 */
+	static final int DELAY_MILLIS = Math.max(0,
+			Integer.getInteger(UserProfileUpdater.class.getName() + ".delayMillis", 500));
+
+	private static final ConcurrentMap<String, Update> PENDING = new ConcurrentHashMap<>();
+
+	private UserProfileUpdater() {
+	}
+
+	/**
+	 * Schedules the update of the given user if the values differ from the
+	 * stored ones.
+	 *
+	 * @param user
+	 *            the {@link User}
+	 * @param fullName
+	 *            the full name from keycloak
+	 * @param email
+	 *            the e-mail address from keycloak, only used if the user did not
+	 *            configure one
+	 * @return boolean - true if an update was scheduled
+	 */
+	static boolean update(User user, String fullName, String email) {
+		if (!isFullNameChanged(user, fullName) && !isEmailChanged(user, email)) {
+			return false;
+		}
+		String id = user.getId();
+		// a pending update is replaced, the scheduled task picks up the latest values
+		if (PENDING.put(id, new Update(user, fullName, email)) == null) {
+			Timer.get().schedule(() -> apply(id), DELAY_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		return true;
+	}
+
+	private static void apply(String id) {
+		Update update = PENDING.remove(id);
+		if (update == null) {
+			return;
+		}
+		User user = update.user;
+		try (ACLContext ctx = ACL.as(ACL.SYSTEM); BulkChange bc = new BulkChange(user)) {
+			if (isFullNameChanged(user, update.fullName)) {
+				user.setFullName(update.fullName);
+			}
+			if (isEmailChanged(user, update.email)) {
+				user.addProperty(new Mailer.UserProperty(update.email));
+			}
+			bc.commit();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "User " + id + " could not be saved", e);
+		}
+	}
+
+	private static boolean isFullNameChanged(User user, String fullName) {
+		return fullName != null && !fullName.equals(user.getFullName());
+	}
+
+	private static boolean isEmailChanged(User user, String email) {
+		if (email == null || email.isEmpty()) {
+			return false;
+		}
+		Mailer.UserProperty property = user.getProperty(Mailer.UserProperty.class);
+		return property == null || !property.hasExplicitlyConfiguredAddress();
+	}
+
+	private static final class Update {
+		private final User user;
+		private final String fullName;
+		private final String email;
+
+		private Update(User user, String fullName, String email) {
+			this.user = user;
+			this.fullName = fullName;
+			this.email = email;
+		}
+	}
+}
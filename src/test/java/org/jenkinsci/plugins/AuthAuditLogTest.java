@@ -0,0 +1,75 @@
+package org.jenkinsci.plugins;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.keycloak.util.JsonSerialization;
+
+import static org.junit.Assert.*;
+
+public class AuthAuditLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void events_are_written_as_json_lines() throws Exception {
+        File file = new File(folder.getRoot(), "logs/keycloak-audit.log");
+        AuthAuditLog log = new AuthAuditLog(16, file, 1024 * 1024, 2);
+
+        log.record(AuthAuditLog.EventType.LOGIN, "alice", "alice-id", "sid-1", null);
+        log.record(AuthAuditLog.EventType.FORCED_LOGOUT, "alice", "alice-id", "sid-1", "refresh_expired");
+        log.flush();
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        Map<?, ?> login = JsonSerialization.readValue(lines.get(0), Map.class);
+        assertEquals("login", login.get("type"));
+        assertEquals("alice", login.get("user"));
+        assertEquals("sid-1", login.get("session"));
+        assertFalse(login.containsKey("detail"));
+        Map<?, ?> logout = JsonSerialization.readValue(lines.get(1), Map.class);
+        assertEquals("forced-logout", logout.get("type"));
+        assertEquals("refresh_expired", logout.get("detail"));
+    }
+
+    @Test
+    public void full_buffer_drops_events() throws Exception {
+        File file = new File(folder.getRoot(), "audit.log");
+        AuthAuditLog log = new AuthAuditLog(4, file, 1024 * 1024, 2);
+
+        for (int i = 0; i < 6; i++) {
+            log.record(AuthAuditLog.EventType.REFRESH, "user-" + i, null, null, null);
+        }
+        log.flush();
+
+        assertEquals(2, log.getDroppedCount());
+        assertEquals(4, Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size());
+        // the drained buffer takes events again
+        log.record(AuthAuditLog.EventType.REFRESH, "user-6", null, null, null);
+        log.flush();
+        assertEquals(5, Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size());
+    }
+
+    @Test
+    public void file_is_rotated_when_it_is_full() throws Exception {
+        File file = new File(folder.getRoot(), "audit.log");
+        AuthAuditLog log = new AuthAuditLog(16, file, 1, 2);
+
+        for (int i = 0; i < 4; i++) {
+            log.record(AuthAuditLog.EventType.LOGOUT, "user-" + i, null, null, "user");
+            log.flush();
+        }
+
+        assertTrue(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).get(0).contains("user-3"));
+        assertTrue(new File(file.getPath() + ".1").exists());
+        assertTrue(new File(file.getPath() + ".2").exists());
+        assertFalse(new File(file.getPath() + ".3").exists());
+    }
+}
@@ -0,0 +1,152 @@
+package org.jenkinsci.plugins;
+
+import java.security.KeyPairGenerator;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.common.VerificationException;
+import org.keycloak.jose.jws.JWSBuilder;
+import org.keycloak.representations.LogoutToken;
+
+import static org.junit.Assert.*;
+
+public class BackchannelLogoutTest {
+    private static final String BACKCHANNEL_LOGOUT_EVENT = "http://schemas.openid.net/event/backchannel-logout";
+
+    private StubOidcServer keycloak;
+
+    private KeycloakDeploymentRegistry registry;
+
+    private KeycloakDeployment deployment;
+
+    @Before
+    public void setUp() throws Exception {
+        keycloak = new StubOidcServer();
+        registry = KeycloakDeploymentRegistry.build(keycloak.getKeycloakJson(),
+                Collections.<KeycloakDeploymentMapping>emptyList(), new KeycloakHttpTransport(5, 5, 5));
+        deployment = registry.getDefault();
+    }
+
+    @After
+    public void tearDown() {
+        registry.stop();
+        keycloak.close();
+    }
+
+    @Test
+    public void logout_token_of_the_realm_is_accepted() throws Exception {
+        LogoutToken token = KeycloakSecurityRealm.verifyLogoutToken(deployment, keycloak.sign(logoutToken()));
+
+        assertEquals("sid-1", token.getSid());
+        assertEquals("alice-id", token.getSubject());
+    }
+
+    @Test
+    public void token_for_another_client_is_rejected() throws Exception {
+        LogoutToken token = logoutToken();
+        token.audience("other-client");
+
+        assertRejected(keycloak.sign(token));
+    }
+
+    @Test
+    public void token_without_logout_event_is_rejected() throws Exception {
+        LogoutToken token = logoutToken();
+        token.getEvents().clear();
+
+        assertRejected(keycloak.sign(token));
+    }
+
+    @Test
+    public void token_with_nonce_is_rejected() throws Exception {
+        LogoutToken token = logoutToken();
+        token.setOtherClaims("nonce", "n-1");
+
+        assertRejected(keycloak.sign(token));
+    }
+
+    @Test
+    public void token_with_bad_signature_is_rejected() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        String forged = new JWSBuilder().kid(keycloak.getKeyId()).type("JWT").jsonContent(logoutToken())
+                .rsa256(generator.generateKeyPair().getPrivate());
+
+        assertRejected(forged);
+    }
+
+    @Test
+    public void expired_token_is_rejected() throws Exception {
+        LogoutToken token = logoutToken();
+        token.exp(System.currentTimeMillis() / 1000 - 10);
+
+        assertRejected(keycloak.sign(token));
+    }
+
+    @Test
+    public void token_issued_outside_the_window_is_rejected() throws Exception {
+        long now = System.currentTimeMillis() / 1000;
+        LogoutToken old = logoutToken();
+        old.iat(now - KeycloakSecurityRealm.LOGOUT_TOKEN_MAX_AGE_SECONDS - 60);
+        LogoutToken future = logoutToken();
+        future.iat(now + KeycloakSecurityRealm.LOGOUT_TOKEN_MAX_AGE_SECONDS + 60);
+
+        assertRejected(keycloak.sign(old));
+        assertRejected(keycloak.sign(future));
+    }
+
+    @Test
+    public void token_of_a_path_prefix_mapping_is_verified_with_its_realm() throws Exception {
+        try (StubOidcServer teamKeycloak = new StubOidcServer()) {
+            KeycloakDeploymentMapping mapping = new KeycloakDeploymentMapping(teamKeycloak.getKeycloakJson());
+            mapping.setPathPrefix("team-b");
+            KeycloakDeploymentRegistry mapped = KeycloakDeploymentRegistry.build(keycloak.getKeycloakJson(),
+                    Collections.singletonList(mapping), new KeycloakHttpTransport(5, 5, 5));
+            try {
+                String teamToken = teamKeycloak.sign(logoutToken(teamKeycloak));
+
+                assertEquals("sid-1", KeycloakSecurityRealm.verifyLogoutToken(mapped.getAll(), teamToken).getSid());
+                assertEquals("sid-1", KeycloakSecurityRealm
+                        .verifyLogoutToken(mapped.getAll(), keycloak.sign(logoutToken())).getSid());
+                try {
+                    KeycloakSecurityRealm.verifyLogoutToken(registry.getAll(), teamToken);
+                    fail("the realm of the token is not configured");
+                } catch (VerificationException e) {
+                    // expected
+                }
+            } finally {
+                mapped.stop();
+            }
+        }
+    }
+
+    private LogoutToken logoutToken() {
+        return logoutToken(keycloak);
+    }
+
+    private static LogoutToken logoutToken(StubOidcServer keycloak) {
+        long now = System.currentTimeMillis() / 1000;
+        LogoutToken token = new LogoutToken();
+        token.id("logout-1");
+        token.issuer(keycloak.getIssuer());
+        token.audience(StubOidcServer.CLIENT_ID);
+        token.iat(now);
+        token.exp(now + 120);
+        token.subject("alice-id");
+        token.setSid("sid-1");
+        token.putEvents(BACKCHANNEL_LOGOUT_EVENT, Collections.emptyMap());
+        return token;
+    }
+
+    private void assertRejected(String tokenString) {
+        try {
+            KeycloakSecurityRealm.verifyLogoutToken(deployment, tokenString);
+            fail("logout token must be rejected");
+        } catch (VerificationException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package org.jenkinsci.plugins;
+
+import java.net.URL;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.keycloak.representations.AccessToken;
+
+import com.gargoylesoftware.htmlunit.HttpMethod;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+
+import hudson.model.FreeStyleProject;
+import hudson.security.csrf.DefaultCrumbIssuer;
+
+import static org.junit.Assert.*;
+
+public class BearerTokenFilterTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private StubOidcServer keycloak;
+
+    private KeycloakSecurityRealm ksr;
+
+    @Before
+    public void setUp() throws Exception {
+        keycloak = new StubOidcServer();
+        ksr = new KeycloakSecurityRealm();
+        ksr.setKeycloakJson(keycloak.getKeycloakJson());
+        ksr.setKeycloakBearerAuthentication(true);
+        j.jenkins.setSecurityRealm(ksr);
+    }
+
+    @After
+    public void tearDown() {
+        keycloak.close();
+    }
+
+    @Test
+    public void token_of_the_client_is_accepted() throws Exception {
+        AccessToken token = keycloak.newAccessToken("alice", "sid-1");
+        // keycloak names the client as authorized party, the audience may differ
+        token.audience("account");
+
+        WebResponse response = whoAmI(keycloak.sign(token));
+
+        assertEquals(200, response.getStatusCode());
+        assertTrue(response.getContentAsString().contains("\"name\":\"alice\""));
+    }
+
+    @Test
+    public void token_of_another_client_is_rejected() throws Exception {
+        AccessToken token = keycloak.newAccessToken("alice", "sid-1");
+        token.issuedFor("other-client");
+        token.audience("other-client");
+
+        assertEquals(401, whoAmI(keycloak.sign(token)).getStatusCode());
+    }
+
+    @Test
+    public void expired_token_is_rejected() throws Exception {
+        AccessToken token = keycloak.newAccessToken("alice", "sid-1");
+        long now = System.currentTimeMillis() / 1000;
+        token.iat(now - 600);
+        token.exp(now - 300);
+
+        assertEquals(401, whoAmI(keycloak.sign(token)).getStatusCode());
+    }
+
+    @Test
+    public void token_without_username_is_rejected() throws Exception {
+        AccessToken token = keycloak.newAccessToken("alice", "sid-1");
+        token.setPreferredUsername(null);
+
+        assertEquals(401, whoAmI(keycloak.sign(token)).getStatusCode());
+    }
+
+    @Test
+    public void opaque_token_is_introspected() throws Exception {
+        ksr.setKeycloakTokenIntrospection(true);
+        String token = keycloak.issueOpaqueToken(TokenIntrospectorTest.claims("Bearer", StubOidcServer.CLIENT_ID));
+
+        WebResponse response = whoAmI(token);
+
+        assertEquals(200, response.getStatusCode());
+        assertTrue(response.getContentAsString().contains("\"name\":\"alice\""));
+        assertEquals(1, keycloak.getCalls("introspect"));
+    }
+
+    @Test
+    public void offline_token_is_introspected() throws Exception {
+        ksr.setKeycloakTokenIntrospection(true);
+
+        WebResponse response = whoAmI(keycloak.issueOfflineToken("alice"));
+
+        assertEquals(200, response.getStatusCode());
+        assertTrue(response.getContentAsString().contains("\"name\":\"alice\""));
+        assertEquals(1, keycloak.getCalls("introspect"));
+    }
+
+    @Test
+    public void invalid_jwt_is_not_introspected() throws Exception {
+        ksr.setKeycloakTokenIntrospection(true);
+        AccessToken token = keycloak.newAccessToken("alice", "sid-1");
+        token.exp(System.currentTimeMillis() / 1000 - 300);
+
+        assertEquals(401, whoAmI(keycloak.sign(token)).getStatusCode());
+        assertEquals(0, keycloak.getCalls("introspect"));
+    }
+
+    @Test
+    public void unreachable_keycloak_answers_service_unavailable() throws Exception {
+        ksr.setKeycloakTokenIntrospection(true);
+        // resolve the endpoints while keycloak is up
+        assertEquals(401, whoAmI("unknown-token").getStatusCode());
+        keycloak.close();
+
+        assertEquals(503, whoAmI("another-token").getStatusCode());
+    }
+
+    @Test
+    public void post_with_a_valid_token_needs_no_crumb() throws Exception {
+        j.jenkins.setCrumbIssuer(new DefaultCrumbIssuer(false));
+        FreeStyleProject project = j.createFreeStyleProject("p");
+
+        assertEquals(201, build(keycloak.sign(keycloak.newAccessToken("alice", "sid-1"))).getStatusCode());
+        j.waitUntilNoActivity();
+        assertEquals(1, project.getBuilds().size());
+    }
+
+    @Test
+    public void post_with_an_invalid_token_needs_a_crumb() throws Exception {
+        j.jenkins.setCrumbIssuer(new DefaultCrumbIssuer(false));
+        FreeStyleProject project = j.createFreeStyleProject("p");
+        AccessToken token = keycloak.newAccessToken("alice", "sid-1");
+        token.issuedFor("other-client");
+        token.audience("other-client");
+
+        assertEquals(403, build(keycloak.sign(token)).getStatusCode());
+        assertEquals(0, project.getBuilds().size());
+    }
+
+    private WebResponse build(String token) throws Exception {
+        try (JenkinsRule.WebClient wc = j.createWebClient()) {
+            wc.getOptions().setThrowExceptionOnFailingStatusCode(false);
+            wc.getOptions().setPrintContentOnFailingStatusCode(false);
+            wc.addRequestHeader("Authorization", "Bearer " + token);
+            WebRequest request = new WebRequest(new URL(j.getURL(), "job/p/build?delay=0sec"), HttpMethod.POST);
+            return wc.getPage(request).getWebResponse();
+        }
+    }
+
+    private WebResponse whoAmI(String token) throws Exception {
+        try (JenkinsRule.WebClient wc = j.createWebClient()) {
+            wc.getOptions().setThrowExceptionOnFailingStatusCode(false);
+            wc.getOptions().setPrintContentOnFailingStatusCode(false);
+            wc.addRequestHeader("Authorization", "Bearer " + token);
+            return wc.goTo("whoAmI/api/json", null).getWebResponse();
+        }
+    }
+}
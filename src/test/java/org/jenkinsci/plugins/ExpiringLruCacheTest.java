@@ -0,0 +1,87 @@
+package org.jenkinsci.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ExpiringLruCacheTest {
+
+    @Test
+    public void entry_expires_at_its_deadline() {
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<>(10);
+        cache.put("a", "value", 1000);
+
+        assertEquals("value", cache.get("a", 999));
+        assertNull(cache.get("a", 1000));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void least_recently_used_entry_is_evicted() {
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<>(2);
+        cache.put("a", "1", Long.MAX_VALUE);
+        cache.put("b", "2", Long.MAX_VALUE);
+        // a is used again, so b is the eldest entry
+        cache.get("a", 0);
+
+        cache.put("c", "3", Long.MAX_VALUE);
+
+        assertEquals(2, cache.size());
+        assertEquals("1", cache.get("a", 0));
+        assertNull(cache.get("b", 0));
+        assertEquals("3", cache.get("c", 0));
+    }
+
+    @Test
+    public void concurrent_callers_share_one_load() throws Exception {
+        ExpiringLruCache<String, String> cache = new ExpiringLruCache<>(10);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExpiringLruCache.Loader<String> loader = new ExpiringLruCache.Loader<String>() {
+            @Override
+            public String load() {
+                loads.incrementAndGet();
+                loading.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "value";
+            }
+
+            @Override
+            public long expiresAt(String value) {
+                return Long.MAX_VALUE;
+            }
+        };
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            results.add(callers.submit(() -> cache.get("key", 0, loader)));
+            assertTrue(loading.await(10, TimeUnit.SECONDS));
+            for (int i = 1; i < 8; i++) {
+                results.add(callers.submit(() -> cache.get("key", 0, loader)));
+            }
+            release.countDown();
+            for (Future<String> result : results) {
+                assertEquals("value", result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+        assertEquals(1, loads.get());
+    }
+}
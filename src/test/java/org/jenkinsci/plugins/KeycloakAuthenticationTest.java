@@ -0,0 +1,178 @@
+package org.jenkinsci.plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import hudson.security.SecurityRealm;
+
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.providers.AbstractAuthenticationToken;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.representations.IDToken;
+
+import static org.junit.Assert.*;
+
+public class KeycloakAuthenticationTest {
+    private static final String REFRESH_TOKEN = "refresh-token-of-alice";
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void tokens_survive_serialization_encrypted() throws Exception {
+        KeycloakAuthentication ka = login(300);
+
+        byte[] bytes = serialize(ka);
+        assertFalse(new String(bytes, StandardCharsets.ISO_8859_1).contains(REFRESH_TOKEN));
+
+        KeycloakAuthentication restored = deserialize(bytes);
+        assertEquals("alice", restored.getName());
+        assertEquals("access-token-of-alice", restored.getAccessToken());
+        assertEquals(REFRESH_TOKEN, restored.getRefreshToken());
+        assertEquals(ka.getRefreshExpiresAt(), restored.getRefreshExpiresAt());
+        assertEquals(ka.getAccessExpiresAt(), restored.getAccessExpiresAt());
+        assertFalse(restored.isRefreshExpired());
+        assertFalse(restored.isAccessExpired());
+    }
+
+    @Test
+    public void expired_access_token_is_refreshed_with_jitter() throws Exception {
+        KeycloakAuthentication ka = login(0);
+        long before = System.currentTimeMillis();
+
+        KeycloakAuthentication restored = deserialize(serialize(ka));
+
+        assertTrue(restored.getAccessExpiresAt() >= before);
+        assertTrue(restored.getAccessExpiresAt() <= System.currentTimeMillis()
+                + TimeUnit.SECONDS.toMillis(KeycloakAuthentication.RESTORE_JITTER_SECONDS));
+        assertFalse(restored.isRefreshExpired());
+    }
+
+    @Test
+    public void session_of_a_previous_version_is_restored_without_tokens() throws Exception {
+        byte[] bytes = replaceClassName(serialize(new LegacyAuthentication()), LegacyAuthentication.class.getName(),
+                KeycloakAuthentication.class.getName());
+
+        KeycloakAuthentication restored = deserialize(bytes);
+
+        assertEquals("alice", restored.getName());
+        assertNull(restored.getAccessToken());
+        assertNull(restored.getRefreshToken());
+        assertTrue(restored.isRefreshExpired());
+    }
+
+    @Test
+    public void sessions_with_the_same_roles_share_authorities() throws Exception {
+        Map<String, GrantedAuthority> first = authoritiesOf(login(300, "admin", "developer"));
+        Map<String, GrantedAuthority> second = authoritiesOf(login(300, "admin", "developer"));
+
+        assertSame(first.get("admin"), second.get("admin"));
+        assertSame(first.get("developer"), second.get("developer"));
+    }
+
+    private static Map<String, GrantedAuthority> authoritiesOf(KeycloakAuthentication ka) {
+        Map<String, GrantedAuthority> authorities = new HashMap<>();
+        for (GrantedAuthority authority : ka.getAuthorities()) {
+            authorities.put(authority.getAuthority(), authority);
+        }
+        return authorities;
+    }
+
+    private static KeycloakAuthentication login(int expiresIn, String... roles) {
+        IDToken idToken = new IDToken();
+        idToken.setPreferredUsername("alice");
+        AccessTokenResponse response = new AccessTokenResponse();
+        response.setToken("access-token-of-alice");
+        response.setRefreshToken(REFRESH_TOKEN);
+        response.setExpiresIn(expiresIn);
+        response.setRefreshExpiresIn(1800);
+        AccessToken accessToken = new AccessToken();
+        AccessToken.Access realmAccess = new AccessToken.Access();
+        for (String role : roles) {
+            // distinct string instances, as parsed from each token
+            realmAccess.addRole(new String(role));
+        }
+        accessToken.setRealmAccess(realmAccess);
+        return new KeycloakAuthentication(idToken, accessToken, REFRESH_TOKEN, response);
+    }
+
+    private static byte[] serialize(KeycloakAuthentication ka) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(ka);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] replaceClassName(byte[] bytes, String from, String to) throws Exception {
+        byte[] search = utf(from);
+        byte[] replacement = utf(to);
+        for (int i = 0; i <= bytes.length - search.length; i++) {
+            if (Arrays.equals(search, Arrays.copyOfRange(bytes, i, i + search.length))) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                out.write(bytes, 0, i);
+                out.write(replacement);
+                out.write(bytes, i + search.length, bytes.length - i - search.length);
+                return out.toByteArray();
+            }
+        }
+        throw new AssertionError(from + " not found");
+    }
+
+    private static byte[] utf(String value) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static KeycloakAuthentication deserialize(byte[] bytes) throws Exception {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (KeycloakAuthentication) in.readObject();
+        }
+    }
+
+    /**
+     * The fields of a session written before the tokens were encrypted, without
+     * a writeObject method.
+     */
+    @SuppressWarnings("unused")
+    private static final class LegacyAuthentication extends AbstractAuthenticationToken {
+        private static final long serialVersionUID = 1L;
+
+        private final String userName = "alice";
+
+        private String refreshToken = REFRESH_TOKEN;
+
+        private String accessToken = "access-token-of-alice";
+
+        private long lastRefreshMillis = System.currentTimeMillis();
+
+        LegacyAuthentication() {
+            super(new GrantedAuthority[] { SecurityRealm.AUTHENTICATED_AUTHORITY });
+        }
+
+        @Override
+        public Object getCredentials() {
+            return "";
+        }
+
+        @Override
+        public Object getPrincipal() {
+            return userName;
+        }
+    }
+}
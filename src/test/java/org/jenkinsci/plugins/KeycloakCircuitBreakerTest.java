@@ -0,0 +1,104 @@
+package org.jenkinsci.plugins;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.KeycloakDeploymentBuilder;
+import org.keycloak.adapters.ServerRequest.HttpFailure;
+
+import static org.junit.Assert.*;
+
+public class KeycloakCircuitBreakerTest {
+
+    @Test
+    public void transient_failures_open_the_breaker() throws Exception {
+        KeycloakCircuitBreaker breaker = KeycloakCircuitBreaker.forDeployment(deployment("transient"));
+        for (int i = 0; i < KeycloakCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            breaker.acquire();
+            breaker.onFailure();
+        }
+        assertEquals(KeycloakCircuitBreaker.State.OPEN, breaker.getState());
+        try {
+            breaker.acquire();
+            fail("open breaker must reject calls");
+        } catch (KeycloakCircuitBreaker.OpenException e) {
+            // expected
+        }
+        assertTrue(KeycloakCircuitBreaker.isAnyOpen());
+    }
+
+    @Test
+    public void successful_probe_after_the_open_window_closes_the_breaker() throws Exception {
+        KeycloakCircuitBreaker breaker = open(deployment("recovering"));
+        long afterWindow = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(KeycloakCircuitBreaker.OPEN_SECONDS);
+
+        breaker.acquire(afterWindow);
+        assertEquals(KeycloakCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        try {
+            breaker.acquire(afterWindow);
+            fail("only a single probe may be in flight");
+        } catch (KeycloakCircuitBreaker.OpenException e) {
+            // expected
+        }
+
+        breaker.onSuccess();
+        assertEquals(KeycloakCircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.acquire();
+    }
+
+    @Test
+    public void failing_probe_opens_the_breaker_again() throws Exception {
+        KeycloakCircuitBreaker breaker = open(deployment("still-down"));
+        long afterWindow = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(KeycloakCircuitBreaker.OPEN_SECONDS);
+
+        breaker.acquire(afterWindow);
+        breaker.onFailure();
+
+        assertEquals(KeycloakCircuitBreaker.State.OPEN, breaker.getState());
+        try {
+            breaker.acquire();
+            fail("a new open window starts after a failed probe");
+        } catch (KeycloakCircuitBreaker.OpenException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void reachable_keycloak_keeps_the_breaker_closed() throws Exception {
+        KeycloakCircuitBreaker breaker = KeycloakCircuitBreaker.forDeployment(deployment("revoked"));
+        for (int i = 0; i < KeycloakCircuitBreaker.FAILURE_THRESHOLD * 2; i++) {
+            breaker.acquire();
+            if (i % 2 == 0) {
+                breaker.onFailure();
+            } else {
+                breaker.onSuccess();
+            }
+        }
+        assertEquals(KeycloakCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void server_errors_are_transient_but_rejections_are_not() {
+        assertTrue(KeycloakCircuitBreaker.isTransient(new HttpFailure(503, "Service Unavailable")));
+        assertTrue(KeycloakCircuitBreaker.isTransient(new HttpFailure(429, "Too Many Requests")));
+        assertFalse(KeycloakCircuitBreaker.isTransient(new HttpFailure(400, "{\"error\":\"invalid_grant\"}")));
+    }
+
+    private static KeycloakCircuitBreaker open(KeycloakDeployment deployment) throws Exception {
+        KeycloakCircuitBreaker breaker = KeycloakCircuitBreaker.forDeployment(deployment);
+        for (int i = 0; i < KeycloakCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            breaker.acquire();
+            breaker.onFailure();
+        }
+        assertEquals(KeycloakCircuitBreaker.State.OPEN, breaker.getState());
+        return breaker;
+    }
+
+    private static KeycloakDeployment deployment(String realm) {
+        String json = "{\"realm\": \"" + realm + "\",\"auth-server-url\": \"https://keycloak.example.com/auth/\",\"ssl-required\": \"external\",\"resource\": \"ci-example-com\",\"credentials\": {\"secret\": \"secret-secret-secret\"},\"confidential-port\": 0}";
+        return KeycloakDeploymentBuilder.build(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,109 @@
+package org.jenkinsci.plugins;
+
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.adapters.KeycloakDeployment;
+
+import static org.junit.Assert.*;
+
+public class KeycloakDeploymentRegistryTest {
+    private static final String DEFAULT_JSON = json("master", "ci-example-com");
+
+    private KeycloakDeploymentRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        KeycloakDeploymentMapping byHost = new KeycloakDeploymentMapping(json("team-a", "ci-team-a"));
+        byHost.setHost("ci.team-a.example.com");
+        KeycloakDeploymentMapping byPath = new KeycloakDeploymentMapping(json("team-b", "ci-team-b"));
+        byPath.setPathPrefix("/team-b/");
+        registry = KeycloakDeploymentRegistry.build(DEFAULT_JSON, Arrays.asList(byHost, byPath),
+                new KeycloakHttpTransport(5, 1, 1));
+    }
+
+    @After
+    public void tearDown() {
+        registry.stop();
+    }
+
+    @Test
+    public void request_is_resolved_by_host() {
+        KeycloakDeployment deployment = resolve("CI.Team-A.example.com", "/jenkins/job/test/");
+        assertEquals("team-a", deployment.getRealm());
+        assertEquals("ci-team-a", deployment.getResourceName());
+    }
+
+    @Test
+    public void request_is_resolved_by_path_prefix() {
+        assertEquals("team-b", resolve("ci.example.com", "/jenkins/team-b/job/test/").getRealm());
+        assertEquals("team-b", resolve("ci.example.com", "/jenkins/team-b").getRealm());
+    }
+
+    @Test
+    public void login_is_resolved_by_the_path_of_the_referer() {
+        HttpServletRequest login = request("ci.example.com", "/jenkins/securityRealm/commenceLogin");
+        assertEquals("team-b", registry.get(registry.resolveLoginKey(login,
+                "https://ci.example.com/jenkins/team-b/job/test/")).getRealm());
+        assertSame(registry.getDefault(), registry.get(registry.resolveLoginKey(login,
+                "https://ci.example.com/jenkins/job/test/")));
+        assertSame(registry.getDefault(), registry.get(registry.resolveLoginKey(login, null)));
+        assertSame(registry.getDefault(), registry.get(registry.resolveLoginKey(login, "not a url")));
+        // the host takes precedence over the path
+        assertEquals("team-a", registry.get(registry.resolveLoginKey(
+                request("ci.team-a.example.com", "/jenkins/securityRealm/commenceLogin"),
+                "https://ci.team-a.example.com/jenkins/team-b/")).getRealm());
+    }
+
+    @Test
+    public void unmatched_request_uses_default_deployment() {
+        assertSame(registry.getDefault(), resolve("ci.example.com", "/jenkins/job/team-b/"));
+        assertSame(registry.getDefault(), registry.get(null));
+        assertSame(registry.getDefault(), registry.get("host:removed.example.com"));
+    }
+
+    @Test
+    public void deployments_are_built_once() {
+        KeycloakDeployment first = resolve("ci.team-a.example.com", "/jenkins/");
+        assertSame(first, resolve("ci.team-a.example.com", "/jenkins/manage"));
+        assertEquals(3, registry.getKeyCaches().size());
+    }
+
+    @Test
+    public void calls_are_counted_per_deployment() {
+        KeycloakDeployment deployment = registry.getDefault();
+        try (KeycloakHttpTransport.Call call = KeycloakHttpTransport.begin(deployment)) {
+            assertEquals(1, KeycloakHttpTransport.getInFlightCount(deployment));
+            assertEquals(0, KeycloakHttpTransport.getInFlightCount(resolve("ci.team-a.example.com", "/jenkins/")));
+        }
+        assertEquals(0, KeycloakHttpTransport.getInFlightCount(deployment));
+    }
+
+    private KeycloakDeployment resolve(String host, String uri) {
+        return registry.get(registry.resolveKey(request(host, uri)));
+    }
+
+    private static HttpServletRequest request(String host, String uri) {
+        return ServletStubs.stub(HttpServletRequest.class, (method, args) -> {
+            switch (method.getName()) {
+            case "getServerName":
+                return host;
+            case "getRequestURI":
+                return uri;
+            case "getContextPath":
+                return "/jenkins";
+            default:
+                return ServletStubs.defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private static String json(String realm, String resource) {
+        return "{\"realm\": \"" + realm + "\",\"auth-server-url\": \"https://keycloak.example.com/auth/\",\"ssl-required\": \"external\",\"resource\": \""
+                + resource + "\",\"credentials\": {\"secret\": \"secret-secret-secret\"},\"confidential-port\": 0}";
+    }
+}
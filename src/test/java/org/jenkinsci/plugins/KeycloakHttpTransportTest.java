@@ -0,0 +1,50 @@
+package org.jenkinsci.plugins;
+
+import org.junit.Test;
+import org.keycloak.representations.adapters.config.AdapterConfig;
+import org.keycloak.util.JsonSerialization;
+
+import static org.junit.Assert.*;
+
+public class KeycloakHttpTransportTest {
+
+    @Test
+    public void unset_settings_keep_the_values_of_the_json() throws Exception {
+        AdapterConfig config = config(
+                ",\"connection-pool-size\": 7,\"connection-timeout-millis\": 1500,\"socket-timeout-millis\": 2500");
+
+        new KeycloakHttpTransport(0, 0, 0).apply(config);
+
+        assertEquals(7, config.getConnectionPoolSize());
+        assertEquals(1500, config.getConnectionTimeout());
+        assertEquals(2500, config.getSocketTimeout());
+    }
+
+    @Test
+    public void set_settings_override_the_json() throws Exception {
+        AdapterConfig config = config(
+                ",\"connection-pool-size\": 7,\"connection-timeout-millis\": 1500,\"socket-timeout-millis\": 2500");
+
+        new KeycloakHttpTransport(50, 0, 5).apply(config);
+
+        assertEquals(50, config.getConnectionPoolSize());
+        assertEquals(1500, config.getConnectionTimeout());
+        assertEquals(5000, config.getSocketTimeout());
+    }
+
+    @Test
+    public void timeouts_missing_everywhere_get_the_defaults() throws Exception {
+        AdapterConfig config = config("");
+
+        new KeycloakHttpTransport(0, 0, 0).apply(config);
+
+        assertTrue(config.getConnectionPoolSize() > 0);
+        assertEquals(KeycloakHttpTransport.DEFAULT_CONNECT_TIMEOUT * 1000L, config.getConnectionTimeout());
+        assertEquals(KeycloakHttpTransport.DEFAULT_READ_TIMEOUT * 1000L, config.getSocketTimeout());
+    }
+
+    private static AdapterConfig config(String connectionSettings) throws Exception {
+        return JsonSerialization.readValue("{\"realm\": \"master\",\"auth-server-url\": \"https://keycloak.example.com/auth/\",\"resource\": \"ci-example-com\""
+                + connectionSettings + "}", AdapterConfig.class);
+    }
+}
@@ -0,0 +1,163 @@
+package org.jenkinsci.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs concurrent simulated users against a {@link StubOidcServer}: each user
+ * logs in through <code>commenceLogin</code> and <code>finishLogin</code> and
+ * after the minimum refresh interval sends repeated requests through the
+ * {@link RefreshFilter}, which refreshes the session. Throughput,
+ * latency percentiles and the calls to keycloak are printed. The number of
+ * users and requests can be raised with the system properties
+ * <code>keycloak.loadtest.users</code> and
+ * <code>keycloak.loadtest.requests</code>.
+ */
+public class KeycloakLoadTest {
+    private static final int USERS = Integer.getInteger("keycloak.loadtest.users", 8);
+
+    private static final int REQUESTS = Integer.getInteger("keycloak.loadtest.requests", 20);
+
+    private static final int MIN_REFRESH_INTERVAL_SECONDS = 1;
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private StubOidcServer keycloak;
+
+    @Before
+    public void setUp() throws Exception {
+        keycloak = new StubOidcServer();
+        KeycloakSecurityRealm ksr = new KeycloakSecurityRealm();
+        ksr.setKeycloakJson(keycloak.getKeycloakJson());
+        ksr.setKeycloakValidate(true);
+        // refresh on requests, not only after the access token expired
+        ksr.setKeycloakRespectAccessTokenTimeout(false);
+        ksr.setKeycloakMinRefreshInterval(MIN_REFRESH_INTERVAL_SECONDS);
+        j.jenkins.setSecurityRealm(ksr);
+    }
+
+    @After
+    public void tearDown() {
+        keycloak.close();
+    }
+
+    @Test
+    public void concurrent_users_login_and_refresh() throws Exception {
+        keycloak.setLatencyMillis(5);
+
+        Report report = run();
+
+        report.print("concurrent users");
+        assertEquals(USERS, report.logins.get());
+        assertEquals(USERS * REQUESTS, report.authenticated.get());
+        assertEquals(USERS, keycloak.getCalls("token"));
+        // every session is refreshed at least once after the pause
+        assertTrue(keycloak.getCalls("refresh") >= USERS);
+    }
+
+    @Test
+    public void sessions_survive_failing_refreshes() throws Exception {
+        keycloak.setFailureRate(1.0);
+
+        Report report = run();
+
+        report.print("failing refreshes");
+        assertEquals(USERS, report.logins.get());
+        assertEquals(USERS * REQUESTS, report.authenticated.get());
+        assertTrue(keycloak.getCalls("refresh") > 0);
+    }
+
+    private Report run() throws Exception {
+        final Report report = new Report();
+        ExecutorService users = Executors.newFixedThreadPool(USERS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < USERS; i++) {
+                futures.add(users.submit(() -> {
+                    simulateUser(report);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(5, TimeUnit.MINUTES);
+            }
+            report.elapsedNanos = System.nanoTime() - start;
+        } finally {
+            users.shutdownNow();
+        }
+        return report;
+    }
+
+    private void simulateUser(Report report) throws Exception {
+        try (JenkinsRule.WebClient wc = j.createWebClient()) {
+            wc.getOptions().setJavaScriptEnabled(false);
+            long start = System.nanoTime();
+            wc.goTo("securityRealm/commenceLogin");
+            report.loginLatency.record(System.nanoTime() - start);
+            if (whoAmI(wc).contains("\"name\":\"user-")) {
+                report.logins.incrementAndGet();
+            }
+            // wait past the minimum refresh interval and its jitter, so the requests
+            // refresh the session
+            Thread.sleep(TimeUnit.SECONDS.toMillis(MIN_REFRESH_INTERVAL_SECONDS) * 3 / 2);
+            for (int i = 0; i < REQUESTS; i++) {
+                start = System.nanoTime();
+                String whoAmI = whoAmI(wc);
+                report.requestLatency.record(System.nanoTime() - start);
+                if (whoAmI.contains("\"name\":\"user-")) {
+                    report.authenticated.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private static String whoAmI(JenkinsRule.WebClient wc) throws Exception {
+        return wc.goTo("whoAmI/api/json", "application/json").getWebResponse().getContentAsString();
+    }
+
+    private final class Report {
+        final AtomicInteger logins = new AtomicInteger();
+
+        final AtomicInteger authenticated = new AtomicInteger();
+
+        final LatencyHistogram loginLatency = new LatencyHistogram();
+
+        final LatencyHistogram requestLatency = new LatencyHistogram();
+
+        long elapsedNanos;
+
+        void print(String name) {
+            double seconds = elapsedNanos / 1e9;
+            long requests = loginLatency.getCount() + requestLatency.getCount();
+            System.out.println("Load test '" + name + "': " + USERS + " users, " + REQUESTS + " requests each");
+            System.out.println(String.format("  throughput: %.1f requests/s", requests / seconds));
+            System.out.println("  login latency (ms): " + percentiles(loginLatency));
+            System.out.println("  request latency (ms): " + percentiles(requestLatency));
+            System.out.println("  keycloak calls: " + keycloak.getCalls());
+        }
+
+        private String percentiles(LatencyHistogram histogram) {
+            return "p50 " + millis(histogram.getPercentile(0.5)) + ", p90 " + millis(histogram.getPercentile(0.9))
+                    + ", p99 " + millis(histogram.getPercentile(0.99)) + ", max " + millis(histogram.getMax());
+        }
+
+        private long millis(long nanos) {
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+    }
+}
@@ -33,6 +33,21 @@ public class KeycloakSecurityRealmTest {
 			"  },\n" +
 			"  \"confidential-port\": 0\n" +
 			"}", securityRealm.getKeycloakJson());
+        assertEquals(50, securityRealm.getKeycloakConnectionPoolSize());
+        assertEquals(0, securityRealm.getKeycloakConnectTimeout());
+        assertEquals(5, securityRealm.getKeycloakReadTimeout());
+    }
+
+    @Test
+    public void settings_missing_in_an_old_configuration_use_the_defaults() {
+        KeycloakSecurityRealm ksr = (KeycloakSecurityRealm) Jenkins.XSTREAM2.fromXML(
+                "<org.jenkinsci.plugins.KeycloakSecurityRealm><keycloakJson>{}</keycloakJson></org.jenkinsci.plugins.KeycloakSecurityRealm>");
+        assertEquals(KeycloakSecurityRealm.DEFAULT_MAX_TOKEN_STALENESS, ksr.getKeycloakMaxTokenStaleness());
+        assertEquals(KeycloakSecurityRealm.DEFAULT_MIN_REFRESH_INTERVAL, ksr.getKeycloakMinRefreshInterval());
+        assertEquals(0, ksr.getKeycloakConnectionPoolSize());
+
+        ksr.setKeycloakMaxTokenStaleness(0);
+        assertEquals(0, ksr.getKeycloakMaxTokenStaleness());
     }
 
     @Test
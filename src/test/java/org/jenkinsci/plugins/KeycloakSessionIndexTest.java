@@ -0,0 +1,61 @@
+package org.jenkinsci.plugins;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.http.HttpSession;
+
+import org.junit.Test;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.representations.IDToken;
+
+import static org.junit.Assert.*;
+
+public class KeycloakSessionIndexTest {
+
+    @Test
+    public void logout_by_session_id_invalidates_only_that_session() {
+        AtomicBoolean laptopInvalidated = new AtomicBoolean();
+        AtomicBoolean phoneInvalidated = new AtomicBoolean();
+        login(session(laptopInvalidated), "sid-laptop", "user-carol");
+        login(session(phoneInvalidated), "sid-phone", "user-carol");
+
+        assertEquals(1, KeycloakSessionIndex.logout("sid-laptop", "user-carol"));
+
+        assertTrue(laptopInvalidated.get());
+        assertFalse(phoneInvalidated.get());
+        assertEquals(0, KeycloakSessionIndex.logout("sid-laptop", null));
+    }
+
+    @Test
+    public void logout_by_subject_invalidates_all_sessions_of_the_user() {
+        AtomicBoolean laptopInvalidated = new AtomicBoolean();
+        AtomicBoolean phoneInvalidated = new AtomicBoolean();
+        login(session(laptopInvalidated), "sid-1", "user-dave");
+        login(session(phoneInvalidated), "sid-2", "user-dave");
+
+        assertEquals(2, KeycloakSessionIndex.logout(null, "user-dave"));
+
+        assertTrue(laptopInvalidated.get());
+        assertTrue(phoneInvalidated.get());
+        // invalidated sessions left the session id index as well
+        assertEquals(0, KeycloakSessionIndex.logout("sid-1", null));
+    }
+
+    private static void login(HttpSession session, String sessionId, String subject) {
+        AccessToken token = new AccessToken();
+        token.setSessionState(sessionId);
+        token.subject(subject);
+        IDToken idToken = new IDToken();
+        idToken.setPreferredUsername(subject);
+        AccessTokenResponse response = new AccessTokenResponse();
+        response.setToken("access");
+        response.setRefreshToken("refresh");
+        KeycloakSessionIndex.bind(session, new KeycloakAuthentication(idToken, token, "refresh", response));
+    }
+
+    private static HttpSession session(AtomicBoolean invalidated) {
+        return ServletStubs.session(new ConcurrentHashMap<>(), invalidated);
+    }
+}
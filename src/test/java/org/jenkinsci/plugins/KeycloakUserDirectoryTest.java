@@ -0,0 +1,175 @@
+package org.jenkinsci.plugins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.userdetails.UserDetails;
+import org.acegisecurity.userdetails.UsernameNotFoundException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.keycloak.adapters.KeycloakDeployment;
+
+import hudson.security.SecurityRealm;
+import hudson.security.UserMayOrMayNotExistException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Looks up users and realm roles with the admin API of a
+ * {@link StubOidcServer}, authenticated with the service account of the client.
+ */
+public class KeycloakUserDirectoryTest {
+    private static final int CALLERS = 8;
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private StubOidcServer keycloak;
+
+    private KeycloakSecurityRealm ksr;
+
+    private KeycloakDeployment deployment;
+
+    @Before
+    public void setUp() throws Exception {
+        keycloak = new StubOidcServer();
+        keycloak.addUser("alice", "jenkins-admin", "jenkins-user");
+        ksr = new KeycloakSecurityRealm();
+        ksr.setKeycloakJson(keycloak.getKeycloakJson());
+        ksr.setKeycloakUserLookup(true);
+        j.jenkins.setSecurityRealm(ksr);
+        deployment = ksr.getKeycloakDeployment();
+    }
+
+    @After
+    public void tearDown() {
+        keycloak.close();
+    }
+
+    @Test
+    public void user_is_found_with_its_realm_roles() throws Exception {
+        UserDetails alice = ksr.loadUserByUsername("alice");
+
+        assertEquals("alice", alice.getUsername());
+        assertTrue(alice.isEnabled());
+        List<String> authorities = new ArrayList<>();
+        for (GrantedAuthority authority : alice.getAuthorities()) {
+            authorities.add(authority.getAuthority());
+        }
+        assertTrue(authorities.containsAll(Arrays.asList("jenkins-admin", "jenkins-user",
+                SecurityRealm.AUTHENTICATED_AUTHORITY.getAuthority())));
+        assertEquals(1, keycloak.getCalls("client_credentials"));
+    }
+
+    @Test
+    public void missing_user_is_not_found() {
+        try {
+            ksr.loadUserByUsername("mallory");
+            fail("mallory is no user of the realm");
+        } catch (UserMayOrMayNotExistException e) {
+            fail("keycloak answered, the user does not exist");
+        } catch (UsernameNotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void realm_role_is_found_as_group() {
+        assertEquals("jenkins-admin", ksr.loadGroupByGroupname("jenkins-admin").getName());
+        try {
+            ksr.loadGroupByGroupname("no-such-role");
+            fail("the realm has no such role");
+        } catch (UserMayOrMayNotExistException e) {
+            fail("keycloak answered, the role does not exist");
+        } catch (UsernameNotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void missing_user_is_cached_for_a_minute() throws Exception {
+        long now = System.currentTimeMillis();
+        assertNull(KeycloakUserDirectory.get().loadUser(deployment, "bob", now));
+        int calls = keycloak.getCalls("admin");
+        keycloak.addUser("bob");
+
+        assertNull(KeycloakUserDirectory.get().loadUser(deployment, "bob",
+                now + TimeUnit.SECONDS.toMillis(KeycloakUserDirectory.NEGATIVE_CACHE_SECONDS) - 1));
+        assertEquals(calls, keycloak.getCalls("admin"));
+
+        UserDetails bob = KeycloakUserDirectory.get().loadUser(deployment, "bob",
+                now + TimeUnit.SECONDS.toMillis(KeycloakUserDirectory.NEGATIVE_CACHE_SECONDS) + 1);
+        assertEquals("bob", bob.getUsername());
+    }
+
+    @Test
+    public void concurrent_lookups_of_a_user_share_one_call() throws Exception {
+        keycloak.setLatencyMillis(200);
+        long lookupsBefore = KeycloakUserDirectory.get().getLookupCount();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService callers = Executors.newFixedThreadPool(CALLERS);
+        try {
+            List<Future<UserDetails>> results = new ArrayList<>();
+            for (int i = 0; i < CALLERS; i++) {
+                results.add(callers.submit(() -> {
+                    start.await();
+                    return KeycloakUserDirectory.get().loadUser(deployment, "alice");
+                }));
+            }
+            start.countDown();
+            for (Future<UserDetails> result : results) {
+                assertEquals("alice", result.get(10, TimeUnit.SECONDS).getUsername());
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+        assertEquals(1, KeycloakUserDirectory.get().getLookupCount() - lookupsBefore);
+        // the user and its role mappings
+        assertEquals(2, keycloak.getCalls("admin"));
+        assertEquals(1, keycloak.getCalls("client_credentials"));
+    }
+
+    @Test
+    public void disabled_lookup_finds_no_user_or_group() {
+        ksr.setKeycloakUserLookup(false);
+
+        try {
+            ksr.loadUserByUsername("alice");
+            fail("the user lookup is disabled");
+        } catch (UsernameNotFoundException e) {
+            // API tokens and impersonation accept users which may exist
+            assertFalse(e instanceof UserMayOrMayNotExistException);
+        }
+        try {
+            ksr.loadGroupByGroupname("jenkins-admin");
+            fail("the user lookup is disabled");
+        } catch (UsernameNotFoundException e) {
+            assertFalse(e instanceof UserMayOrMayNotExistException);
+        }
+        assertEquals(0, keycloak.getCalls("admin"));
+    }
+
+    @Test
+    public void unreachable_keycloak_may_or_may_not_know_the_user() throws Exception {
+        // resolve the endpoints while keycloak is up
+        ksr.loadUserByUsername("alice");
+        keycloak.close();
+
+        try {
+            ksr.loadUserByUsername("carol");
+            fail("the user can not be looked up");
+        } catch (UserMayOrMayNotExistException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package org.jenkinsci.plugins;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void empty_histogram_reports_zero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getPercentile(0.99));
+    }
+
+    @Test
+    public void percentiles_are_accurate_to_a_factor_of_two() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(50));
+
+        assertEquals(100, histogram.getCount());
+        long p50 = histogram.getPercentile(0.5);
+        assertTrue(p50 >= TimeUnit.MICROSECONDS.toNanos(100));
+        assertTrue(p50 < TimeUnit.MICROSECONDS.toNanos(200));
+        assertEquals(p50, histogram.getPercentile(0.99));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(50), histogram.getPercentile(1));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(50), histogram.getMax());
+    }
+}
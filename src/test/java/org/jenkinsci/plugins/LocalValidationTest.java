@@ -0,0 +1,121 @@
+package org.jenkinsci.plugins;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.acegisecurity.context.SecurityContextHolder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.representations.IDToken;
+
+import static org.jenkinsci.plugins.ServletStubs.stub;
+import static org.junit.Assert.*;
+
+public class LocalValidationTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private StubOidcServer keycloak;
+
+    private KeycloakSecurityRealm ksr;
+
+    private final FilterChain chain = (request, response) -> {
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        keycloak = new StubOidcServer();
+        ksr = new KeycloakSecurityRealm();
+        ksr.setKeycloakJson(keycloak.getKeycloakJson());
+        ksr.setKeycloakValidate(true);
+        ksr.setKeycloakLocalValidation(true);
+        j.jenkins.setSecurityRealm(ksr);
+    }
+
+    @After
+    public void tearDown() {
+        SecurityContextHolder.clearContext();
+        keycloak.close();
+    }
+
+    @Test
+    public void valid_token_is_not_refreshed() throws Exception {
+        KeycloakAuthentication ka = login();
+
+        assertTrue(ka.verifyAccessToken(ksr.getKeycloakDeployment(ka)));
+        request(ka);
+
+        assertEquals(0, keycloak.getCalls("refresh"));
+    }
+
+    @Test
+    public void tampered_token_forces_a_refresh() throws Exception {
+        KeycloakAuthentication ka = login();
+        String[] alice = ka.getAccessToken().split("\\.");
+        String[] mallory = keycloak.sign(keycloak.newAccessToken("mallory", "sid-2")).split("\\.");
+        // the claims of another user with the signature of alice
+        String tampered = alice[0] + "." + mallory[1] + "." + alice[2];
+        ka.setAccessToken(tampered);
+
+        assertFalse(ka.verifyAccessToken(ksr.getKeycloakDeployment(ka)));
+        request(ka);
+
+        assertEquals(1, keycloak.getCalls("refresh"));
+        assertNotEquals(tampered, ka.getAccessToken());
+        assertTrue(ka.verifyAccessToken(ksr.getKeycloakDeployment(ka)));
+    }
+
+    @Test
+    public void expired_token_forces_a_refresh() throws Exception {
+        KeycloakAuthentication ka = login();
+        AccessToken expired = keycloak.newAccessToken("alice", "sid-1");
+        long now = System.currentTimeMillis() / 1000;
+        expired.iat(now - 600);
+        expired.exp(now - 300);
+        // the session still considers the token current, the token itself does not
+        ka.setAccessToken(keycloak.sign(expired));
+
+        request(ka);
+
+        assertEquals(1, keycloak.getCalls("refresh"));
+    }
+
+    @Test
+    public void token_of_another_client_forces_a_refresh() throws Exception {
+        KeycloakAuthentication ka = login();
+        AccessToken foreign = keycloak.newAccessToken("alice", "sid-1");
+        foreign.issuedFor("other-client");
+        foreign.audience("other-client");
+        ka.setAccessToken(keycloak.sign(foreign));
+
+        request(ka);
+
+        assertEquals(1, keycloak.getCalls("refresh"));
+    }
+
+    private KeycloakAuthentication login() {
+        AccessTokenResponse response = keycloak.login("alice");
+        IDToken idToken = new IDToken();
+        idToken.setPreferredUsername("alice");
+        return new KeycloakAuthentication(idToken, null, response.getRefreshToken(), response);
+    }
+
+    private void request(KeycloakAuthentication ka) throws Exception {
+        SecurityContextHolder.getContext().setAuthentication(ka);
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put(KeycloakSecurityRealm.AUTH_REQUESTED, Boolean.TRUE);
+        HttpSession session = ServletStubs.session(attributes);
+        new RefreshFilter().doFilter(ServletStubs.request("/job/test/", session), stub(HttpServletResponse.class),
+                chain);
+    }
+}
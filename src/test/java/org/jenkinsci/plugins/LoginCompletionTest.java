@@ -0,0 +1,144 @@
+package org.jenkinsci.plugins;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpSession;
+
+import org.acegisecurity.context.HttpSessionContextIntegrationFilter;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.junit.Test;
+import org.keycloak.representations.AccessToken;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import static org.jenkinsci.plugins.ServletStubs.defaultValue;
+import static org.jenkinsci.plugins.ServletStubs.stub;
+import static org.junit.Assert.*;
+
+public class LoginCompletionTest {
+    private final Map<String, Object> sessionAttributes = new ConcurrentHashMap<>();
+
+    private final AtomicReference<String> redirectedTo = new AtomicReference<>();
+
+    private final AtomicReference<Thread> loginThread = new AtomicReference<>();
+
+    private final CountDownLatch completed = new CountDownLatch(1);
+
+    private final AtomicReference<AsyncListener> listener = new AtomicReference<>();
+
+    // logins which took effect, stands in for the audit log and the listeners
+    private final List<String> loginEvents = new CopyOnWriteArrayList<>();
+
+    private final LoginCompletion.Login login = claim -> {
+        loginThread.set(Thread.currentThread());
+        if (!claim.getAsBoolean()) {
+            return;
+        }
+        AccessToken token = new AccessToken();
+        token.setPreferredUsername("alice");
+        SecurityContextHolder.getContext().setAuthentication(new KeycloakAuthentication(token));
+        loginEvents.add("alice");
+    };
+
+    @Test
+    public void login_is_completed_off_the_request_thread() throws Exception {
+        new LoginCompletion(login, "/jenkins/job/test/").generateResponse(request(true), response(), null);
+
+        assertTrue(completed.await(10, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), loginThread.get());
+        assertEquals("/jenkins/job/test/", redirectedTo.get());
+        SecurityContext context = (SecurityContext) sessionAttributes
+                .get(HttpSessionContextIntegrationFilter.ACEGI_SECURITY_CONTEXT_KEY);
+        assertEquals("alice", context.getAuthentication().getName());
+        assertEquals(1, loginEvents.size());
+        assertNull(SecurityContextHolder.getContext().getAuthentication());
+    }
+
+    @Test
+    public void login_is_completed_inline_without_async_support() throws Exception {
+        new LoginCompletion(login, "/jenkins/").generateResponse(request(false), response(), null);
+
+        assertSame(Thread.currentThread(), loginThread.get());
+        assertEquals("/jenkins/", redirectedTo.get());
+        assertEquals("alice", SecurityContextHolder.getContext().getAuthentication().getName());
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void login_finishing_after_the_deadline_takes_no_effect() throws Exception {
+        CountDownLatch exchanged = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(1);
+        LoginCompletion.Login slowLogin = claim -> {
+            try {
+                // the token exchange outlasts the deadline
+                exchanged.await(10, TimeUnit.SECONDS);
+                login.run(claim);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                finished.countDown();
+            }
+        };
+
+        new LoginCompletion(slowLogin, "/jenkins/").generateResponse(request(true), response(), null);
+        listener.get().onTimeout(null);
+        assertEquals("/jenkins/", redirectedTo.get());
+        exchanged.countDown();
+
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (LoginCompletion.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(loginEvents.isEmpty());
+        assertNull(sessionAttributes.get(HttpSessionContextIntegrationFilter.ACEGI_SECURITY_CONTEXT_KEY));
+    }
+
+    private StaplerRequest request(boolean asyncSupported) {
+        HttpSession session = ServletStubs.session(sessionAttributes);
+        AsyncContext asyncContext = stub(AsyncContext.class, (method, args) -> {
+            switch (method.getName()) {
+            case "getResponse":
+                return response();
+            case "complete":
+                completed.countDown();
+                return null;
+            case "addListener":
+                listener.set((AsyncListener) args[0]);
+                return null;
+            default:
+                return defaultValue(method.getReturnType());
+            }
+        });
+        return stub(StaplerRequest.class, (method, args) -> {
+            switch (method.getName()) {
+            case "isAsyncSupported":
+                return asyncSupported;
+            case "startAsync":
+                return asyncContext;
+            case "getSession":
+                return session;
+            default:
+                return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private StaplerResponse response() {
+        return stub(StaplerResponse.class, (method, args) -> {
+            if (method.getName().equals("sendRedirect")) {
+                redirectedTo.set((String) args[0]);
+            }
+            return defaultValue(method.getReturnType());
+        });
+    }
+}
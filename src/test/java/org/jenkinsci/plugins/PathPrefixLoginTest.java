@@ -0,0 +1,75 @@
+package org.jenkinsci.plugins;
+
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.*;
+
+/**
+ * Logs in through <code>commenceLogin</code> and <code>finishLogin</code>
+ * from a page below a mapped path prefix, the login and the refreshes of the
+ * session have to use the keycloak of the mapping.
+ */
+public class PathPrefixLoginTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private StubOidcServer defaultKeycloak;
+
+    private StubOidcServer teamKeycloak;
+
+    @Before
+    public void setUp() throws Exception {
+        defaultKeycloak = new StubOidcServer();
+        teamKeycloak = new StubOidcServer();
+        KeycloakDeploymentMapping mapping = new KeycloakDeploymentMapping(teamKeycloak.getKeycloakJson());
+        mapping.setPathPrefix("team-b");
+        KeycloakSecurityRealm ksr = new KeycloakSecurityRealm();
+        ksr.setKeycloakJson(defaultKeycloak.getKeycloakJson());
+        ksr.setKeycloakDeploymentMappings(Collections.singletonList(mapping));
+        ksr.setKeycloakValidate(true);
+        ksr.setKeycloakRespectAccessTokenTimeout(false);
+        ksr.setKeycloakMinRefreshInterval(1);
+        j.jenkins.setSecurityRealm(ksr);
+    }
+
+    @After
+    public void tearDown() {
+        defaultKeycloak.close();
+        teamKeycloak.close();
+    }
+
+    @Test
+    public void login_from_a_mapped_path_uses_the_keycloak_of_the_mapping() throws Exception {
+        try (JenkinsRule.WebClient wc = j.createWebClient()) {
+            wc.getOptions().setJavaScriptEnabled(false);
+            // the page the user came from does not exist, only its path matters
+            wc.getOptions().setThrowExceptionOnFailingStatusCode(false);
+            wc.getOptions().setPrintContentOnFailingStatusCode(false);
+            wc.addRequestHeader("Referer", j.getURL() + "team-b/job/test/");
+            wc.goTo("securityRealm/commenceLogin");
+
+            assertTrue(whoAmI(wc).contains("\"name\":\"user-1\""));
+            assertEquals(1, teamKeycloak.getCalls("auth"));
+            assertEquals(1, teamKeycloak.getCalls("token"));
+
+            // wait past the minimum refresh interval and its jitter
+            Thread.sleep(1500);
+            assertTrue(whoAmI(wc).contains("\"name\":\"user-1\""));
+            assertTrue(teamKeycloak.getCalls("refresh") > 0);
+        }
+        assertEquals(0, defaultKeycloak.getCalls("auth"));
+        assertEquals(0, defaultKeycloak.getCalls("token"));
+        assertEquals(0, defaultKeycloak.getCalls("refresh"));
+    }
+
+    private static String whoAmI(JenkinsRule.WebClient wc) throws Exception {
+        return wc.goTo("whoAmI/api/json", "application/json").getWebResponse().getContentAsString();
+    }
+}
@@ -0,0 +1,120 @@
+package org.jenkinsci.plugins;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.adapters.KeycloakDeployment;
+
+import static org.junit.Assert.*;
+
+public class RealmKeyCacheTest {
+    private static final int CALLERS = 8;
+
+    private StubOidcServer keycloak;
+
+    private KeycloakDeploymentRegistry registry;
+
+    private KeycloakDeployment deployment;
+
+    @Before
+    public void setUp() throws Exception {
+        keycloak = new StubOidcServer();
+        registry = KeycloakDeploymentRegistry.build(keycloak.getKeycloakJson(),
+                Collections.<KeycloakDeploymentMapping>emptyList(), new KeycloakHttpTransport(CALLERS, 5, 5));
+        deployment = registry.getDefault();
+    }
+
+    @After
+    public void tearDown() {
+        registry.stop();
+        keycloak.close();
+    }
+
+    @Test
+    public void started_registry_prefetches_keys_before_the_first_lookup() throws Exception {
+        RealmKeyCache cache = (RealmKeyCache) deployment.getPublicKeyLocator();
+
+        registry.start();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (cache.lookup(keycloak.getKeyId(), System.currentTimeMillis()) == null
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertNotNull(cache.getPublicKey(keycloak.getKeyId(), deployment));
+        assertEquals(1, cache.getFetchCount());
+        assertEquals(0, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void known_key_is_fetched_once_and_counted() {
+        RealmKeyCache cache = new RealmKeyCache();
+
+        PublicKey first = cache.getPublicKey(keycloak.getKeyId(), deployment);
+        PublicKey second = cache.getPublicKey(keycloak.getKeyId(), deployment);
+
+        assertNotNull(first);
+        assertSame(first, second);
+        assertEquals(1, cache.getFetchCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void unknown_key_id_triggers_one_fetch_for_concurrent_lookups() throws Exception {
+        RealmKeyCache cache = new RealmKeyCache();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService callers = Executors.newFixedThreadPool(CALLERS);
+        try {
+            List<Future<PublicKey>> results = new ArrayList<>();
+            for (int i = 0; i < CALLERS; i++) {
+                results.add(callers.submit(() -> {
+                    start.await();
+                    return cache.getPublicKey("unknown-key", deployment);
+                }));
+            }
+            start.countDown();
+            for (Future<PublicKey> result : results) {
+                assertNull(result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+        // further lookups within the minimum time between two fetches stay local
+        assertNull(cache.getPublicKey("unknown-key", deployment));
+
+        assertEquals(1, cache.getFetchCount());
+        assertEquals(CALLERS + 1, cache.getMissCount());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void retired_key_is_accepted_for_the_grace_period() throws Exception {
+        RealmKeyCache cache = new RealmKeyCache();
+        String retiredId = keycloak.getKeyId();
+        cache.reset(deployment);
+        PublicKey retired = cache.lookup(retiredId, System.currentTimeMillis());
+        assertNotNull(retired);
+
+        keycloak.rotateKey();
+        cache.reset(deployment);
+        long now = System.currentTimeMillis();
+
+        assertNotNull(cache.lookup(keycloak.getKeyId(), now));
+        assertSame(retired, cache.lookup(retiredId, now));
+        assertSame(retired, cache.lookup(retiredId, now + TimeUnit.MINUTES.toMillis(RealmKeyCache.GRACE_MINUTES - 1)));
+        assertNull(cache.lookup(retiredId, now + TimeUnit.MINUTES.toMillis(RealmKeyCache.GRACE_MINUTES + 1)));
+        assertEquals(2, cache.getFetchCount());
+    }
+}
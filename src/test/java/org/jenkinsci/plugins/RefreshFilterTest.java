@@ -0,0 +1,112 @@
+package org.jenkinsci.plugins;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.jenkinsci.plugins.ServletStubs.defaultValue;
+import static org.jenkinsci.plugins.ServletStubs.stub;
+import static org.junit.Assert.*;
+
+public class RefreshFilterTest {
+    private static final int REQUESTS = 10000;
+
+    private static final String KEYCLOAK_JSON = "{\"realm\": \"master\",\"auth-server-url\": \"https://keycloak.example.com/auth/\",\"ssl-required\": \"external\",\"resource\": \"ci-example-com\",\"credentials\": {\"secret\": \"secret-secret-secret\"},\"confidential-port\": 0}";
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private final AtomicInteger sessionsCreated = new AtomicInteger();
+
+    private final AtomicInteger passedRequests = new AtomicInteger();
+
+    private final FilterChain chain = (request, response) -> passedRequests.incrementAndGet();
+
+    @Before
+    public void setUp() throws Exception {
+        KeycloakSecurityRealm ksr = new KeycloakSecurityRealm();
+        ksr.setKeycloakJson(KEYCLOAK_JSON);
+        ksr.setKeycloakValidate(true);
+        j.jenkins.setSecurityRealm(ksr);
+    }
+
+    @Test
+    public void anonymous_requests_create_no_session() throws Exception {
+        RefreshFilter filter = new RefreshFilter();
+        HttpServletRequest request = request("/static/1234/css/style.css", null);
+        HttpServletResponse response = stub(HttpServletResponse.class);
+        for (int i = 0; i < REQUESTS; i++) {
+            filter.doFilter(request, response, chain);
+        }
+        assertEquals(0, sessionsCreated.get());
+        assertEquals(REQUESTS, passedRequests.get());
+    }
+
+    @Test
+    public void session_without_login_is_not_checked() throws Exception {
+        RefreshFilter filter = new RefreshFilter();
+        HttpSession session = stub(HttpSession.class);
+        HttpServletRequest request = request("/job/test/", session);
+        for (int i = 0; i < REQUESTS; i++) {
+            filter.doFilter(request, stub(HttpServletResponse.class), chain);
+        }
+        assertEquals(0, sessionsCreated.get());
+        assertEquals(REQUESTS, passedRequests.get());
+    }
+
+    @Test
+    public void deployment_is_shared_until_the_config_changes() throws Exception {
+        KeycloakSecurityRealm ksr = (KeycloakSecurityRealm) j.jenkins.getSecurityRealm();
+        KeycloakDeploymentRegistry registry = ksr.getDeploymentRegistry();
+        assertSame(registry, ksr.getDeploymentRegistry());
+        assertEquals("master", ksr.getKeycloakDeployment().getRealm());
+
+        ksr.setKeycloakJson(KEYCLOAK_JSON.replace("\"master\"", "\"other\""));
+
+        assertNotSame(registry, ksr.getDeploymentRegistry());
+        assertEquals("other", ksr.getKeycloakDeployment().getRealm());
+    }
+
+    @Test
+    public void filters_follow_the_active_realm() throws Exception {
+        // applied in setUp without saving the configuration
+        assertTrue(KeycloakFilterRegistration.isRegistered());
+
+        j.jenkins.setSecurityRealm(j.createDummySecurityRealm());
+        // a filter still running while another realm is active passes requests on
+        new RefreshFilter().doFilter(request("/job/test/", stub(HttpSession.class)), stub(HttpServletResponse.class),
+                chain);
+
+        assertEquals(1, passedRequests.get());
+        assertFalse(KeycloakFilterRegistration.isRegistered());
+
+        j.jenkins.setSecurityRealm(new KeycloakSecurityRealm());
+        assertTrue(KeycloakFilterRegistration.isRegistered());
+    }
+
+    private HttpServletRequest request(String pathInfo, HttpSession existingSession) {
+        return stub(HttpServletRequest.class, (method, args) -> {
+            switch (method.getName()) {
+            case "getPathInfo":
+                return pathInfo;
+            case "getSession":
+                boolean create = args == null || (Boolean) args[0];
+                if (existingSession == null && create) {
+                    sessionsCreated.incrementAndGet();
+                    return stub(HttpSession.class);
+                }
+                return existingSession;
+            default:
+                return defaultValue(method.getReturnType());
+            }
+        });
+    }
+}
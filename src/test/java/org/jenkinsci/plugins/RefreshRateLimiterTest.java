@@ -0,0 +1,34 @@
+package org.jenkinsci.plugins;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RefreshRateLimiterTest {
+
+    @Test
+    public void burst_is_granted_then_refreshes_are_limited() {
+        RefreshRateLimiter limiter = new RefreshRateLimiter(1, 5);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        assertFalse(limiter.tryAcquire());
+    }
+
+    @Test
+    public void bucket_refills_over_time() throws Exception {
+        RefreshRateLimiter limiter = new RefreshRateLimiter(100, 1);
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        Thread.sleep(50);
+        assertTrue(limiter.tryAcquire());
+    }
+
+    @Test
+    public void no_limit_without_rate() {
+        RefreshRateLimiter limiter = new RefreshRateLimiter(0, 1);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+    }
+}
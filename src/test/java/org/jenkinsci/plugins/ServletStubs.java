@@ -0,0 +1,149 @@
+package org.jenkinsci.plugins;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+
+/**
+ * Proxy based stubs of servlet and HTTP client interfaces shared by the tests
+ * and benchmarks.
+ */
+final class ServletStubs {
+
+    /**
+     * Answers a call of a stubbed method.
+     */
+    interface Answer {
+        Object answer(Method method, Object[] args) throws Throwable;
+    }
+
+    private ServletStubs() {
+    }
+
+    /**
+     * Returns a stub answering every call with the default value of the return
+     * type.
+     */
+    static <T> T stub(Class<T> type) {
+        return stub(type, (method, args) -> defaultValue(method.getReturnType()));
+    }
+
+    /**
+     * Returns a stub answering calls with the given answer, except for
+     * <code>equals</code>, <code>hashCode</code> and <code>toString</code>
+     * which use the identity of the stub.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T stub(Class<T> type, Answer answer) {
+        return (T) Proxy.newProxyInstance(ServletStubs.class.getClassLoader(), new Class<?>[] { type },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "equals":
+                        return args != null && args.length == 1 ? proxy == args[0] : answer.answer(method, args);
+                    case "hashCode":
+                        return args == null ? System.identityHashCode(proxy) : answer.answer(method, args);
+                    case "toString":
+                        return args == null ? type.getSimpleName() + "@" + System.identityHashCode(proxy)
+                                : answer.answer(method, args);
+                    default:
+                        return answer.answer(method, args);
+                    }
+                });
+    }
+
+    static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    /**
+     * Returns a request for the given path which belongs to the given session,
+     * null for a request without a session.
+     */
+    static HttpServletRequest request(String pathInfo, HttpSession session) {
+        return stub(HttpServletRequest.class, (method, args) -> {
+            switch (method.getName()) {
+            case "getPathInfo":
+                return pathInfo;
+            case "getSession":
+                return session;
+            default:
+                return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    /**
+     * Returns a session keeping its attributes in the given map.
+     */
+    static HttpSession session(Map<String, Object> attributes) {
+        return session(attributes, new AtomicBoolean());
+    }
+
+    /**
+     * Returns a session keeping its attributes in the given map, which notifies
+     * its attributes like a container and sets the given flag when it is
+     * invalidated.
+     */
+    static HttpSession session(Map<String, Object> attributes, AtomicBoolean invalidated) {
+        HttpSession[] self = new HttpSession[1];
+        self[0] = stub(HttpSession.class, (method, args) -> {
+            switch (method.getName()) {
+            case "getAttribute":
+                return attributes.get(args[0]);
+            case "setAttribute":
+                if (args[1] == null) {
+                    unbind(self[0], (String) args[0], attributes.remove(args[0]));
+                    return null;
+                }
+                attributes.put((String) args[0], args[1]);
+                if (args[1] instanceof HttpSessionBindingListener) {
+                    ((HttpSessionBindingListener) args[1])
+                            .valueBound(new HttpSessionBindingEvent(self[0], (String) args[0]));
+                }
+                return null;
+            case "removeAttribute":
+                unbind(self[0], (String) args[0], attributes.remove(args[0]));
+                return null;
+            case "invalidate":
+                invalidated.set(true);
+                for (String name : new ArrayList<>(attributes.keySet())) {
+                    unbind(self[0], name, attributes.remove(name));
+                }
+                return null;
+            default:
+                return defaultValue(method.getReturnType());
+            }
+        });
+        return self[0];
+    }
+
+    /**
+     * Returns an empty session.
+     */
+    static HttpSession session() {
+        return session(new ConcurrentHashMap<>());
+    }
+
+    private static void unbind(HttpSession session, String name, Object value) {
+        if (value instanceof HttpSessionBindingListener) {
+            ((HttpSessionBindingListener) value).valueUnbound(new HttpSessionBindingEvent(session, name));
+        }
+    }
+}
@@ -0,0 +1,505 @@
+package org.jenkinsci.plugins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.keycloak.jose.jwk.JSONWebKeySet;
+import org.keycloak.jose.jwk.JWK;
+import org.keycloak.jose.jwk.JWKBuilder;
+import org.keycloak.jose.jws.JWSBuilder;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.representations.IDToken;
+import org.keycloak.representations.JsonWebToken;
+import org.keycloak.util.JsonSerialization;
+
+/**
+ * In-process stand-in for a keycloak realm, serving discovery, authorization,
+ * token (authorization code, refresh and client credentials grants),
+ * introspection, logout and JWKS endpoints on a local port, and the admin API
+ * endpoints for user and realm role lookups of users added with
+ * {@link #addUser(String, String...)}. Every user who passes the authorization
+ * endpoint is logged in as a new user <code>user-N</code>. Latency can be set
+ * for the token and admin endpoints, a failure rate for the token endpoint,
+ * the calls of every endpoint are counted.
+ */
+public class StubOidcServer implements AutoCloseable {
+    static final String REALM = "test";
+
+    static final String CLIENT_ID = "jenkins";
+
+    private final HttpServer server;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final AtomicInteger keyVersion = new AtomicInteger();
+
+    // the signing key of the realm and its key id, replaced by a rotation
+    private volatile KeyPair keyPair;
+
+    private volatile String keyId;
+
+    private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+
+    // authorization codes and refresh tokens to the user they were issued for
+    private final Map<String, String> codes = new ConcurrentHashMap<>();
+
+    private final Map<String, String> refreshTokens = new ConcurrentHashMap<>();
+
+    // claims of opaque and offline tokens returned by the introspection endpoint
+    private final Map<String, Map<String, Object>> opaqueTokens = new ConcurrentHashMap<>();
+
+    private final AtomicInteger users = new AtomicInteger();
+
+    // realm roles of the users known to the admin API
+    private final Map<String, List<String>> directoryUsers = new ConcurrentHashMap<>();
+
+    private volatile int latencyMillis;
+
+    private volatile double failureRate;
+
+    private volatile int accessTokenLifespan = 300;
+
+    public StubOidcServer() throws Exception {
+        rotateKey();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/realms/" + REALM + "/", this::handle);
+        server.createContext("/admin/realms/" + REALM + "/", this::handleAdmin);
+        server.start();
+    }
+
+    /**
+     * Replaces the signing key of the realm with a new key under a new key id,
+     * the previous key is no longer published.
+     */
+    public void rotateKey() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair rotated = generator.generateKeyPair();
+        String rotatedId = "stub-key-" + keyVersion.incrementAndGet();
+        keyPair = rotated;
+        keyId = rotatedId;
+    }
+
+    /**
+     * Returns the id of the current signing key.
+     */
+    public String getKeyId() {
+        return keyId;
+    }
+
+    /**
+     * Returns the base url of the server, the keycloak <code>auth-server-url</code>.
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Returns a keycloak JSON for a confidential client of the realm.
+     */
+    public String getKeycloakJson() {
+        return "{\"realm\": \"" + REALM + "\",\"auth-server-url\": \"" + getUrl()
+                + "/\",\"ssl-required\": \"none\",\"resource\": \"" + CLIENT_ID
+                + "\",\"credentials\": {\"secret\": \"secret\"},\"confidential-port\": 0}";
+    }
+
+    /**
+     * Sets the delay of every token endpoint response.
+     */
+    public void setLatencyMillis(int latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Sets the share of token endpoint calls, except the code exchange, which
+     * fail with 503.
+     */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * Sets the lifetime of issued access tokens in seconds.
+     */
+    public void setAccessTokenLifespan(int accessTokenLifespan) {
+        this.accessTokenLifespan = accessTokenLifespan;
+    }
+
+    /**
+     * Issues an opaque token which the introspection endpoint reports as active
+     * with the given claims.
+     */
+    public String issueOpaqueToken(Map<String, Object> claims) {
+        String token = UUID.randomUUID().toString();
+        opaqueTokens.put(token, claims);
+        return token;
+    }
+
+    /**
+     * Issues an offline token of the client for the given user, which can not
+     * be verified with the published keys and which the introspection endpoint
+     * reports as active.
+     */
+    public String issueOfflineToken(String username) throws Exception {
+        JsonWebToken token = new JsonWebToken();
+        token.id(UUID.randomUUID().toString());
+        token.issuer(getIssuer());
+        token.subject(username + "-id");
+        token.issuedFor(CLIENT_ID);
+        token.audience(getIssuer());
+        token.iat(System.currentTimeMillis() / 1000);
+        token.type("Offline");
+        // keycloak signs offline tokens with a key of its own, which is not published
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        String encoded = new JWSBuilder().kid("offline-key").type("JWT").jsonContent(token)
+                .rsa256(generator.generateKeyPair().getPrivate());
+        Map<String, Object> claims = new HashMap<>();
+        claims.put("typ", "Offline");
+        claims.put("azp", CLIENT_ID);
+        claims.put("client_id", CLIENT_ID);
+        claims.put("username", username);
+        claims.put("sub", username + "-id");
+        opaqueTokens.put(encoded, claims);
+        return encoded;
+    }
+
+    /**
+     * Adds a user with the given realm roles to the admin API.
+     */
+    public void addUser(String username, String... realmRoles) {
+        directoryUsers.put(username, Arrays.asList(realmRoles));
+    }
+
+    /**
+     * Returns the number of calls of an endpoint, e.g. <code>token</code>,
+     * <code>refresh</code>, <code>auth</code>, <code>certs</code>,
+     * <code>introspect</code>, <code>admin</code>.
+     */
+    public int getCalls(String endpoint) {
+        AtomicInteger count = calls.get(endpoint);
+        return count == null ? 0 : count.get();
+    }
+
+    public Map<String, Integer> getCalls() {
+        Map<String, Integer> result = new HashMap<>();
+        for (Map.Entry<String, AtomicInteger> entry : calls.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath().substring(("/realms/" + REALM).length());
+            switch (path) {
+            case "/.well-known/openid-configuration":
+                count("discovery");
+                sendJson(exchange, 200, discovery());
+                break;
+            case "/protocol/openid-connect/auth":
+                count("auth");
+                authorize(exchange);
+                break;
+            case "/protocol/openid-connect/token":
+                token(exchange);
+                break;
+            case "/protocol/openid-connect/token/introspect":
+                count("introspect");
+                introspect(exchange);
+                break;
+            case "/protocol/openid-connect/logout":
+                count("logout");
+                exchange.sendResponseHeaders(204, -1);
+                break;
+            case "/protocol/openid-connect/certs":
+                count("certs");
+                sendJson(exchange, 200, certs());
+                break;
+            default:
+                exchange.sendResponseHeaders(404, -1);
+            }
+        } catch (Exception e) {
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleAdmin(HttpExchange exchange) throws IOException {
+        try {
+            count("admin");
+            if (latencyMillis > 0) {
+                TimeUnit.MILLISECONDS.sleep(latencyMillis);
+            }
+            String path = exchange.getRequestURI().getPath().substring(("/admin/realms/" + REALM).length());
+            String[] segments = path.split("/");
+            if ("/users".equals(path)) {
+                String username = parse(exchange.getRequestURI().getRawQuery()).get("username");
+                List<Map<String, Object>> found = new ArrayList<>();
+                if (username != null && directoryUsers.containsKey(username)) {
+                    Map<String, Object> user = new HashMap<>();
+                    user.put("id", username + "-id");
+                    user.put("username", username);
+                    user.put("enabled", true);
+                    found.add(user);
+                }
+                sendJson(exchange, 200, found);
+            } else if (path.startsWith("/users/") && path.endsWith("/role-mappings/realm/composite")) {
+                String username = segments[2].substring(0, segments[2].length() - "-id".length());
+                List<String> roles = directoryUsers.get(username);
+                if (roles == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
+                }
+                List<Map<String, Object>> mappings = new ArrayList<>();
+                for (String role : roles) {
+                    mappings.add(role(role));
+                }
+                sendJson(exchange, 200, mappings);
+            } else if (path.startsWith("/roles/") && segments.length == 3) {
+                String name = segments[2];
+                for (List<String> roles : directoryUsers.values()) {
+                    if (roles.contains(name)) {
+                        sendJson(exchange, 200, role(name));
+                        return;
+                    }
+                }
+                exchange.sendResponseHeaders(404, -1);
+            } else {
+                exchange.sendResponseHeaders(404, -1);
+            }
+        } catch (Exception e) {
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static Map<String, Object> role(String name) {
+        Map<String, Object> role = new HashMap<>();
+        role.put("id", name + "-id");
+        role.put("name", name);
+        return role;
+    }
+
+    private Map<String, Object> discovery() {
+        String issuer = getIssuer();
+        String protocol = issuer + "/protocol/openid-connect";
+        Map<String, Object> discovery = new HashMap<>();
+        discovery.put("issuer", issuer);
+        discovery.put("authorization_endpoint", protocol + "/auth");
+        discovery.put("token_endpoint", protocol + "/token");
+        discovery.put("introspection_endpoint", protocol + "/token/introspect");
+        discovery.put("userinfo_endpoint", protocol + "/userinfo");
+        discovery.put("end_session_endpoint", protocol + "/logout");
+        discovery.put("jwks_uri", protocol + "/certs");
+        return discovery;
+    }
+
+    private JSONWebKeySet certs() {
+        JWK jwk = JWKBuilder.create().kid(keyId).algorithm("RS256").rsa(keyPair.getPublic());
+        JSONWebKeySet keySet = new JSONWebKeySet();
+        keySet.setKeys(new JWK[] { jwk });
+        return keySet;
+    }
+
+    private void authorize(HttpExchange exchange) throws IOException {
+        Map<String, String> query = parse(exchange.getRequestURI().getRawQuery());
+        String code = UUID.randomUUID().toString();
+        codes.put(code, "user-" + users.incrementAndGet());
+        String location = query.get("redirect_uri") + "?code=" + code + "&state="
+                + URLEncoder.encode(query.get("state"), "UTF-8");
+        exchange.getResponseHeaders().set("Location", location);
+        exchange.sendResponseHeaders(302, -1);
+    }
+
+    private void token(HttpExchange exchange) throws Exception {
+        Map<String, String> form;
+        try (InputStream is = exchange.getRequestBody()) {
+            form = parse(new String(readAll(is), StandardCharsets.UTF_8));
+        }
+        String grantType = form.get("grant_type");
+        count("authorization_code".equals(grantType) ? "token" : "refresh_token".equals(grantType) ? "refresh" : grantType);
+        if (latencyMillis > 0) {
+            TimeUnit.MILLISECONDS.sleep(latencyMillis);
+        }
+        if (!"authorization_code".equals(grantType) && ThreadLocalRandom.current().nextDouble() < failureRate) {
+            sendJson(exchange, 503, error("temporarily_unavailable"));
+            return;
+        }
+        String username;
+        if ("authorization_code".equals(grantType)) {
+            username = codes.remove(form.get("code"));
+        } else if ("refresh_token".equals(grantType)) {
+            username = refreshTokens.remove(form.get("refresh_token"));
+        } else if ("client_credentials".equals(grantType)) {
+            username = "service-account-" + CLIENT_ID;
+        } else {
+            username = null;
+        }
+        if (username == null) {
+            sendJson(exchange, 400, error("invalid_grant"));
+            return;
+        }
+        sendJson(exchange, 200, tokenResponse(username, !"client_credentials".equals(grantType)));
+    }
+
+    private void introspect(HttpExchange exchange) throws IOException {
+        Map<String, String> form;
+        try (InputStream is = exchange.getRequestBody()) {
+            form = parse(new String(readAll(is), StandardCharsets.UTF_8));
+        }
+        Map<String, Object> claims = opaqueTokens.get(form.get("token"));
+        Map<String, Object> result = new HashMap<>();
+        if (claims != null) {
+            result.putAll(claims);
+        }
+        result.put("active", claims != null);
+        sendJson(exchange, 200, result);
+    }
+
+    private AccessTokenResponse tokenResponse(String username, boolean withRefreshToken) {
+        long now = System.currentTimeMillis() / 1000;
+        String sessionState = UUID.randomUUID().toString();
+        AccessToken accessToken = newAccessToken(username, sessionState);
+        IDToken idToken = new IDToken();
+        fill(idToken, username, now, sessionState);
+        idToken.type("ID");
+        idToken.setEmail(username + "@example.com");
+
+        AccessTokenResponse response = new AccessTokenResponse();
+        response.setToken(sign(accessToken));
+        response.setIdToken(sign(idToken));
+        response.setTokenType("Bearer");
+        response.setExpiresIn(accessTokenLifespan);
+        response.setSessionState(sessionState);
+        if (withRefreshToken) {
+            String refreshToken = UUID.randomUUID().toString();
+            refreshTokens.put(refreshToken, username);
+            response.setRefreshToken(refreshToken);
+            response.setRefreshExpiresIn(1800);
+        }
+        return response;
+    }
+
+    /**
+     * Logs the given user in without the authorization endpoint and returns the
+     * token response, whose refresh token the token endpoint accepts.
+     */
+    public AccessTokenResponse login(String username) {
+        return tokenResponse(username, true);
+    }
+
+    /**
+     * Returns an access token of the realm for the given user, issued for the
+     * client, which can be changed and signed with {@link #sign(JsonWebToken)}.
+     */
+    public AccessToken newAccessToken(String username, String sessionState) {
+        AccessToken accessToken = new AccessToken();
+        fill(accessToken, username, System.currentTimeMillis() / 1000, sessionState);
+        accessToken.type("Bearer");
+        AccessToken.Access realmAccess = new AccessToken.Access();
+        realmAccess.addRole("jenkins-user");
+        accessToken.setRealmAccess(realmAccess);
+        return accessToken;
+    }
+
+    private void fill(IDToken token, String username, long now, String sessionState) {
+        token.id(UUID.randomUUID().toString());
+        token.issuer(getIssuer());
+        token.subject(username + "-id");
+        token.issuedFor(CLIENT_ID);
+        token.audience(CLIENT_ID);
+        token.iat(now);
+        token.exp(now + accessTokenLifespan);
+        token.setPreferredUsername(username);
+        token.setSessionState(sessionState);
+    }
+
+    /**
+     * Signs a token with the key of the realm.
+     */
+    public String sign(JsonWebToken token) {
+        return new JWSBuilder().kid(keyId).type("JWT").jsonContent(token).rsa256(keyPair.getPrivate());
+    }
+
+    public String getIssuer() {
+        return getUrl() + "/realms/" + REALM;
+    }
+
+    private void count(String endpoint) {
+        calls.computeIfAbsent(endpoint, k -> new AtomicInteger()).incrementAndGet();
+    }
+
+    private static Map<String, String> error(String error) {
+        Map<String, String> json = new HashMap<>();
+        json.put("error", error);
+        return json;
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] bytes = JsonSerialization.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static Map<String, String> parse(String encoded) throws IOException {
+        Map<String, String> values = new HashMap<>();
+        if (encoded == null || encoded.isEmpty()) {
+            return values;
+        }
+        for (String pair : encoded.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                values.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return values;
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = is.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,124 @@
+package org.jenkinsci.plugins;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.adapters.KeycloakDeployment;
+
+import static org.junit.Assert.*;
+
+public class TokenIntrospectorTest {
+
+    private StubOidcServer keycloak;
+
+    private KeycloakDeploymentRegistry registry;
+
+    private KeycloakDeployment deployment;
+
+    @Before
+    public void setUp() throws Exception {
+        keycloak = new StubOidcServer();
+        registry = KeycloakDeploymentRegistry.build(keycloak.getKeycloakJson(),
+                Collections.<KeycloakDeploymentMapping>emptyList(), new KeycloakHttpTransport(5, 5, 5));
+        deployment = registry.getDefault();
+    }
+
+    @After
+    public void tearDown() {
+        registry.stop();
+        keycloak.close();
+    }
+
+    @Test
+    public void active_access_token_of_the_client_is_accepted_once() throws Exception {
+        String token = keycloak.issueOpaqueToken(claims("Bearer", StubOidcServer.CLIENT_ID));
+
+        KeycloakAuthentication first = TokenIntrospector.get().authenticate(deployment, token);
+        KeycloakAuthentication second = TokenIntrospector.get().authenticate(deployment, token);
+
+        assertEquals("alice", first.getName());
+        assertSame(first, second);
+        assertEquals(1, keycloak.getCalls("introspect"));
+    }
+
+    @Test
+    public void offline_token_of_the_client_is_accepted() throws Exception {
+        String token = keycloak.issueOpaqueToken(claims("Offline", StubOidcServer.CLIENT_ID));
+
+        assertEquals("alice", TokenIntrospector.get().authenticate(deployment, token).getName());
+    }
+
+    @Test
+    public void token_of_one_client_is_not_accepted_by_another_client_of_the_realm() throws Exception {
+        KeycloakDeploymentRegistry other = KeycloakDeploymentRegistry.build(
+                keycloak.getKeycloakJson().replace("\"resource\": \"" + StubOidcServer.CLIENT_ID + "\"",
+                        "\"resource\": \"other-client\""),
+                Collections.<KeycloakDeploymentMapping>emptyList(), new KeycloakHttpTransport(5, 5, 5));
+        try {
+            String token = keycloak.issueOpaqueToken(claims("Bearer", StubOidcServer.CLIENT_ID));
+
+            assertNotNull(TokenIntrospector.get().authenticate(deployment, token));
+            assertNull(TokenIntrospector.get().authenticate(other.getDefault(), token));
+            assertEquals(2, keycloak.getCalls("introspect"));
+        } finally {
+            other.stop();
+        }
+    }
+
+    @Test
+    public void inactive_token_is_rejected() throws Exception {
+        assertNull(TokenIntrospector.get().authenticate(deployment, "unknown-token"));
+    }
+
+    @Test
+    public void refresh_token_is_rejected() throws Exception {
+        String token = keycloak.issueOpaqueToken(claims("Refresh", StubOidcServer.CLIENT_ID));
+
+        assertNull(TokenIntrospector.get().authenticate(deployment, token));
+    }
+
+    @Test
+    public void token_of_another_client_is_rejected() throws Exception {
+        String token = keycloak.issueOpaqueToken(claims("Bearer", "other-client"));
+
+        assertNull(TokenIntrospector.get().authenticate(deployment, token));
+    }
+
+    @Test
+    public void token_without_username_is_rejected() throws Exception {
+        Map<String, Object> claims = claims("Bearer", StubOidcServer.CLIENT_ID);
+        claims.remove("username");
+
+        assertNull(TokenIntrospector.get().authenticate(deployment, keycloak.issueOpaqueToken(claims)));
+    }
+
+    @Test
+    public void unreachable_keycloak_fails_with_an_io_exception() throws Exception {
+        // resolve the endpoints while keycloak is up
+        TokenIntrospector.get().authenticate(deployment, "unknown-token-" + System.nanoTime());
+        keycloak.close();
+
+        try {
+            TokenIntrospector.get().authenticate(deployment, "another-token-" + System.nanoTime());
+            fail("IOException expected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    static Map<String, Object> claims(String type, String clientId) {
+        Map<String, Object> claims = new HashMap<>();
+        claims.put("typ", type);
+        claims.put("client_id", clientId);
+        claims.put("azp", clientId);
+        claims.put("username", "alice");
+        claims.put("sub", "alice-id");
+        claims.put("exp", System.currentTimeMillis() / 1000 + 300);
+        return claims;
+    }
+}
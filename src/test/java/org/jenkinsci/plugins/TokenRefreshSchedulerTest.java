@@ -0,0 +1,84 @@
+package org.jenkinsci.plugins;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.representations.IDToken;
+
+import static org.junit.Assert.*;
+
+public class TokenRefreshSchedulerTest {
+    private static final int LIFESPAN_SECONDS = 300;
+
+    @Test
+    public void refresh_is_due_after_80_percent_of_the_lifetime_plus_jitter() {
+        KeycloakAuthentication ka = login(LIFESPAN_SECONDS);
+        long lifetime = ka.getAccessExpiresAt() - ka.getLastRefreshMillis();
+        long earliest = ka.getLastRefreshMillis() + lifetime * TokenRefreshScheduler.REFRESH_PERCENT / 100;
+        long latest = earliest + lifetime * TokenRefreshScheduler.JITTER_PERCENT / 100;
+
+        boolean jittered = false;
+        for (int i = 0; i < 100; i++) {
+            long refreshAt = TokenRefreshScheduler.refreshAt(ka);
+            assertTrue(refreshAt >= earliest);
+            assertTrue(refreshAt < latest);
+            jittered |= refreshAt != earliest;
+        }
+        assertTrue(jittered);
+    }
+
+    @Test
+    public void expired_token_is_not_scheduled() {
+        assertEquals(-1, TokenRefreshScheduler.refreshAt(login(0)));
+    }
+
+    @Test
+    public void session_is_idle_after_15_minutes_without_request() {
+        KeycloakAuthentication ka = login(LIFESPAN_SECONDS);
+        long now = System.currentTimeMillis();
+
+        ka.markAccessed(now - TimeUnit.MINUTES.toMillis(14));
+        assertFalse(TokenRefreshScheduler.isIdle(ka, now));
+
+        ka.markAccessed(now - TimeUnit.MINUTES.toMillis(TokenRefreshScheduler.IDLE_MINUTES) - 1);
+        assertTrue(TokenRefreshScheduler.isIdle(ka, now));
+    }
+
+    @Test
+    public void session_is_claimed_once_until_released() {
+        KeycloakAuthentication ka = login(LIFESPAN_SECONDS);
+
+        assertTrue(ka.claimRefreshSchedule());
+        assertTrue(ka.isRefreshScheduled());
+        assertFalse(ka.claimRefreshSchedule());
+
+        ka.releaseRefreshSchedule();
+        assertFalse(ka.isRefreshScheduled());
+        assertTrue(ka.claimRefreshSchedule());
+    }
+
+    @Test
+    public void tracked_session_is_scheduled_once() {
+        KeycloakAuthentication ka = login(LIFESPAN_SECONDS);
+        int before = TokenRefreshScheduler.get().getScheduledSessionCount();
+
+        TokenRefreshScheduler.get().track(ka);
+        TokenRefreshScheduler.get().track(ka);
+
+        assertTrue(ka.isRefreshScheduled());
+        assertEquals(before + 1, TokenRefreshScheduler.get().getScheduledSessionCount());
+        assertTrue(ka.getLastAccess() > 0);
+    }
+
+    private static KeycloakAuthentication login(int expiresIn) {
+        IDToken idToken = new IDToken();
+        idToken.setPreferredUsername("alice");
+        AccessTokenResponse response = new AccessTokenResponse();
+        response.setToken("access-token");
+        response.setRefreshToken("refresh-token");
+        response.setExpiresIn(expiresIn);
+        response.setRefreshExpiresIn(1800);
+        return new KeycloakAuthentication(idToken, null, "refresh-token", response);
+    }
+}
@@ -0,0 +1,130 @@
+package org.jenkinsci.plugins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.ServerRequest.HttpFailure;
+import org.keycloak.representations.AccessTokenResponse;
+import org.keycloak.representations.IDToken;
+
+import static org.junit.Assert.*;
+
+public class TokenRefresherTest {
+    private static final int CALLERS = 8;
+
+    private StubOidcServer keycloak;
+
+    private KeycloakDeploymentRegistry registry;
+
+    private KeycloakDeployment deployment;
+
+    private ExecutorService callers;
+
+    @Before
+    public void setUp() throws Exception {
+        keycloak = new StubOidcServer();
+        registry = KeycloakDeploymentRegistry.build(keycloak.getKeycloakJson(),
+                Collections.<KeycloakDeploymentMapping>emptyList(), new KeycloakHttpTransport(CALLERS, 5, 5));
+        deployment = registry.getDefault();
+        callers = Executors.newFixedThreadPool(CALLERS);
+    }
+
+    @After
+    public void tearDown() {
+        callers.shutdownNow();
+        registry.stop();
+        keycloak.close();
+    }
+
+    @Test
+    public void concurrent_callers_share_one_refresh() throws Exception {
+        keycloak.setLatencyMillis(300);
+        KeycloakAuthentication ka = login();
+        String observed = ka.getRefreshToken();
+        long coalescedBefore = TokenRefresher.get().getCoalescedRefreshCount();
+
+        List<Future<String>> results = refreshConcurrently(ka, observed);
+
+        String first = results.get(0).get(10, TimeUnit.SECONDS);
+        for (Future<String> result : results) {
+            assertEquals(first, result.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, keycloak.getCalls("refresh"));
+        assertEquals(CALLERS - 1, TokenRefresher.get().getCoalescedRefreshCount() - coalescedBefore);
+        assertEquals(first, ka.getAccessToken());
+        assertNotEquals(observed, ka.getRefreshToken());
+    }
+
+    @Test
+    public void waiting_callers_get_the_failure() throws Exception {
+        keycloak.setLatencyMillis(300);
+        keycloak.setFailureRate(1.0);
+        KeycloakAuthentication ka = login();
+        String observed = ka.getRefreshToken();
+        long coalescedBefore = TokenRefresher.get().getCoalescedRefreshCount();
+
+        List<Future<String>> results = refreshConcurrently(ka, observed);
+
+        for (Future<String> result : results) {
+            try {
+                result.get(10, TimeUnit.SECONDS);
+                fail("the refresh failed for every caller");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof HttpFailure);
+                assertEquals(503, ((HttpFailure) e.getCause()).getStatus());
+            }
+        }
+        long coalesced = TokenRefresher.get().getCoalescedRefreshCount() - coalescedBefore;
+        assertTrue(coalesced > 0);
+        // callers which arrived after a failed refresh send their own
+        assertEquals(CALLERS - coalesced, keycloak.getCalls("refresh"));
+        assertEquals(observed, ka.getRefreshToken());
+    }
+
+    @Test
+    public void caller_with_an_outdated_token_reuses_the_refreshed_session() throws Exception {
+        KeycloakAuthentication ka = login();
+        String observed = ka.getRefreshToken();
+        String refreshed = TokenRefresher.get().refresh(deployment, ka, observed);
+        long coalescedBefore = TokenRefresher.get().getCoalescedRefreshCount();
+
+        String reused = TokenRefresher.get().refresh(deployment, ka, observed);
+
+        assertEquals(refreshed, reused);
+        assertEquals(1, keycloak.getCalls("refresh"));
+        assertEquals(1, TokenRefresher.get().getCoalescedRefreshCount() - coalescedBefore);
+        assertEquals(0, TokenRefresher.get().getInFlightCount());
+    }
+
+    private List<Future<String>> refreshConcurrently(KeycloakAuthentication ka, String observed)
+            throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++) {
+            results.add(callers.submit(() -> {
+                start.await();
+                return TokenRefresher.get().refresh(deployment, ka, observed);
+            }));
+        }
+        start.countDown();
+        return results;
+    }
+
+    private KeycloakAuthentication login() {
+        AccessTokenResponse response = keycloak.login("alice");
+        IDToken idToken = new IDToken();
+        idToken.setPreferredUsername("alice");
+        return new KeycloakAuthentication(idToken, null, response.getRefreshToken(), response);
+    }
+}
@@ -0,0 +1,64 @@
+package org.jenkinsci.plugins;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.User;
+import hudson.model.listeners.SaveableListener;
+import hudson.tasks.Mailer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+import static org.junit.Assert.*;
+
+public class UserProfileUpdaterTest {
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void unchanged_profile_is_not_saved() throws Exception {
+        User alice = User.getById("alice", true);
+        alice.setFullName("alice");
+        alice.addProperty(new Mailer.UserProperty("alice@example.com"));
+        int saves = SaveCounter.saves.get();
+
+        assertFalse(UserProfileUpdater.update(alice, "alice", "other@example.com"));
+
+        Thread.sleep(UserProfileUpdater.DELAY_MILLIS + 500);
+        assertEquals(saves, SaveCounter.saves.get());
+        assertEquals("alice@example.com", alice.getProperty(Mailer.UserProperty.class).getAddress());
+    }
+
+    @Test
+    public void changes_within_the_delay_are_saved_once() throws Exception {
+        User bob = User.getById("bob", true);
+        int saves = SaveCounter.saves.get();
+
+        assertTrue(UserProfileUpdater.update(bob, "Bob", null));
+        assertTrue(UserProfileUpdater.update(bob, "Bob Builder", "bob@example.com"));
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (SaveCounter.saves.get() == saves && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals("Bob Builder", bob.getFullName());
+        assertEquals("bob@example.com", bob.getProperty(Mailer.UserProperty.class).getAddress());
+        assertEquals(saves + 1, SaveCounter.saves.get());
+    }
+
+    @TestExtension
+    public static class SaveCounter extends SaveableListener {
+        static final AtomicInteger saves = new AtomicInteger();
+
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof User) {
+                saves.incrementAndGet();
+            }
+        }
+    }
+}